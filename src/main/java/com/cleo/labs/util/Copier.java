@@ -0,0 +1,342 @@
+package com.cleo.labs.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A zero-copy file copy engine.  The content is moved with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * in bounded chunks, looping until every byte has been transferred, which
+ * keeps the kernel copy path for local and NFS targets alike.  When a transfer
+ * makes no progress the chunk is retried as a buffered read and write, and
+ * then after a short backoff; a copy that makes no progress for {@code STALLS}
+ * attempts in a row fails rather than spinning on a source that never delivers.
+ * <p>
+ * If enabled, every {@code checkpoint} bytes the destination is forced to disk and the
+ * offset is recorded in a {@code dst.ckpt} file alongside it, so that a copy
+ * that is interrupted can be resumed from the last checkpoint as long as the
+ * source is unchanged.  The checkpoint is removed when the copy completes.
+ * <p>
+ * A {@code sparse} copy reads the source instead of transferring it, and
+ * leaves every all-zero {@code block} of it as a hole in the destination
+ * rather than writing it, so that sparse files (and zero-filled regions)
+ * stay sparse.  With {@code preallocate} (implied by {@code sparse}) the
+ * destination is extended to its final size before any data is written.
+ */
+public class Copier {
+    public static final String CHECKPOINT = ".ckpt";
+    public static final int    STALLS     = 16;
+
+    /**
+     * Receives progress reports after each chunk is copied.
+     */
+    public interface Progress {
+        /**
+         * @param copied the number of bytes of the destination written so far (including resumed bytes)
+         * @param total the total number of bytes to copy
+         * @param nanos the elapsed time in nanoseconds
+         */
+        public void progress(long copied, long total, long nanos);
+    }
+
+    /**
+     * A "case" class describing a copy result, including:
+     * <ul>
+     * <li>{@code bytes} the size of the copied file</li>
+     * <li>{@code resumed} the offset the copy was resumed from (0 for a fresh copy)</li>
+     * <li>{@code holes} the number of zero bytes left as holes by a sparse copy</li>
+     * <li>{@code nanos} the elapsed time in nanoseconds</li>
+     * </ul>
+     */
+    public static class Result {
+        public long bytes;
+        public long resumed;
+        public long holes;
+        public long nanos;
+        public Result (long bytes, long resumed, long nanos) {
+            this.bytes   = bytes;
+            this.resumed = resumed;
+            this.nanos   = nanos;
+        }
+        /**
+         * Returns the throughput of the bytes actually copied in bytes per second.
+         * @return the throughput, or 0 if no time elapsed
+         */
+        public double throughput() {
+            return nanos>0 ? (bytes-resumed)*1e9/nanos : 0;
+        }
+        public String toString() {
+            return String.format("%d bytes (resumed at %d, %d in holes) in %.1f ms (%.1f MB/s)",
+                                 bytes, resumed, holes, nanos/1e6, throughput()/(1024*1024));
+        }
+    }
+
+    private long     chunk       = 64*1024*1024;
+    private long     checkpoint  = 0;
+    private Progress progress    = null;
+    private boolean  sparse      = false;
+    private boolean  preallocate = false;
+    private int      block       = 4096;
+
+    /**
+     * Sets the maximum number of bytes requested per transfer (default 64 MB).
+     * @param chunk the chunk size in bytes
+     * @return this
+     */
+    public Copier chunk(long chunk) {
+        if (chunk<=0) throw new IllegalArgumentException("chunk must be positive");
+        this.chunk = chunk;
+        return this;
+    }
+
+    /**
+     * Sets the number of bytes between checkpoints, or 0 (the default) to
+     * disable checkpoints.
+     * @param checkpoint the checkpoint interval in bytes
+     * @return this
+     */
+    public Copier checkpoint(long checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    public Copier progress(Progress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Sets whether all-zero blocks of the source are left as holes in the
+     * destination (default {@code false}).
+     * @param sparse {@code true} for a sparse copy
+     * @return this
+     */
+    public Copier sparse(boolean sparse) {
+        this.sparse = sparse;
+        return this;
+    }
+
+    /**
+     * Sets the granularity at which zero blocks are detected by a sparse
+     * copy (default 4 KB, the usual file system block size).
+     * @param block the block size in bytes
+     * @return this
+     */
+    public Copier block(int block) {
+        if (block<=0) throw new IllegalArgumentException("block must be positive");
+        this.block = block;
+        return this;
+    }
+
+    /**
+     * Sets whether the destination is extended to its final size before the
+     * data is written (default {@code false}).
+     * @param preallocate {@code true} to preallocate
+     * @return this
+     */
+    public Copier preallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+        return this;
+    }
+
+    /**
+     * Returns the checkpoint {@link File} for destination {@code dst}.
+     * @param dst the destination {@link File}
+     * @return the checkpoint {@link File}
+     */
+    public static File checkpoint(File dst) {
+        return new File(dst.getPath()+CHECKPOINT);
+    }
+
+    /**
+     * Returns the offset from which a copy of {@code src} to {@code dst} can be
+     * resumed, or 0 if there is no valid checkpoint for this source.
+     * @param src the source {@link File}
+     * @param dst the destination {@link File}
+     * @return the resume offset, or 0
+     */
+    public static long resumable(File src, File dst) {
+        File ckpt = checkpoint(dst);
+        if (!ckpt.isFile() || !dst.isFile()) {
+            return 0;
+        }
+        try {
+            String[] fields = new String(F.read(ckpt), StandardCharsets.UTF_8).trim().split("\t", 4);
+            if (fields.length==4 &&
+                Long.parseLong(fields[0])==src.length() &&
+                Long.parseLong(fields[1])==src.lastModified() &&
+                fields[3].equals(src.getAbsolutePath())) {
+                long offset = Long.parseLong(fields[2]);
+                if (offset>0 && offset<=dst.length() && offset<=src.length()) {
+                    return offset;
+                }
+            }
+        } catch (IOException | NumberFormatException ignore) {}
+        return 0;
+    }
+
+    private static void record(File src, File dst, long offset) throws IOException {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(checkpoint(dst));
+            out.write((src.length()+"\t"+src.lastModified()+"\t"+offset+"\t"+src.getAbsolutePath()+"\n")
+                      .getBytes(StandardCharsets.UTF_8));
+        } finally {
+            if (out!=null) out.close();
+        }
+    }
+
+    /**
+     * Copies up to {@code length} bytes from {@code position}, writing only the
+     * runs of blocks that are not all zero, at the same position in {@code out}.
+     * @return the number of bytes consumed from {@code in}
+     */
+    /**
+     * Copies up to {@code length} bytes at {@code position} through {@code buf}.
+     * @return the number of bytes copied, or 0 or -1 if none could be read
+     */
+    private static long buffered(FileChannel in, FileChannel out, long position, long length, ByteBuffer buf) throws IOException {
+        buf.clear();
+        buf.limit((int)Math.min(buf.capacity(), length));
+        int n = in.read(buf, position);
+        if (n<=0) {
+            return n;
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            out.write(buf); // at the channel position, where transferTo would have written
+        }
+        return n;
+    }
+
+    /**
+     * Waits briefly before retrying after {@code stalls} attempts in a row
+     * made no progress, doubling from 1 ms up to 64 ms.
+     */
+    private static void backoff(int stalls) throws IOException {
+        try {
+            Thread.sleep(1L<<Math.min(stalls-1, 6));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("copy interrupted");
+        }
+    }
+
+    private long sparse(FileChannel in, FileChannel out, long position, long length, ByteBuffer buf, long[] holes) throws IOException {
+        buf.clear();
+        buf.limit((int)Math.min(buf.capacity(), length));
+        int n = in.read(buf, position);
+        if (n<=0) {
+            return n;
+        }
+        int i = 0;
+        while (i<n) {
+            int end = Math.min(i+block, n);
+            if (zero(buf, i, end)) {
+                holes[0] += end-i;
+                i = end;
+                continue;
+            }
+            int run = i;
+            i = end;
+            while (i<n) {
+                end = Math.min(i+block, n);
+                if (zero(buf, i, end)) break;
+                i = end;
+            }
+            ByteBuffer data = buf.duplicate();
+            data.limit(i).position(run);
+            long p = position+run;
+            while (data.hasRemaining()) {
+                p += out.write(data, p);
+            }
+        }
+        return n;
+    }
+
+    private static boolean zero(ByteBuffer buf, int from, int to) {
+        int i = from;
+        for (; i+8<=to; i+=8) {
+            if (buf.getLong(i)!=0) return false;
+        }
+        for (; i<to; i++) {
+            if (buf.get(i)!=0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies {@code src} to {@code dst}, resuming from a valid checkpoint if
+     * there is one, and otherwise replacing the content of {@code dst}.
+     * @param src the source {@link File}
+     * @param dst the destination {@link File}
+     * @return the {@link Result}
+     * @throws IOException
+     */
+    public Result copy(File src, File dst) throws IOException {
+        long start   = System.nanoTime();
+        long resumed = resumable(src, dst);
+        FileInputStream  fis = null;
+        RandomAccessFile raf = null;
+        try {
+            fis = new FileInputStream(src);
+            raf = new RandomAccessFile(dst, "rw");
+            FileChannel schannel = fis.getChannel();
+            FileChannel dchannel = raf.getChannel();
+            long       size     = schannel.size();
+            long       position = resumed;
+            long       recorded = resumed;
+            long[]     holes    = new long[1];
+            int        stalls   = 0;
+            ByteBuffer buf      = sparse ? ByteBuffer.allocateDirect((int)Math.min(chunk, 1024*1024)) : null;
+            dchannel.truncate(position);
+            if (sparse || preallocate) {
+                raf.setLength(size);
+            }
+            dchannel.position(position);
+            while (position < size) {
+                long n = sparse ? sparse(schannel, dchannel, position, Math.min(chunk, size-position), buf, holes)
+                                : schannel.transferTo(position, Math.min(chunk, size-position), dchannel);
+                if (n<=0 && !sparse) {
+                    // some channels refuse transferTo outright: fall back to a buffered copy
+                    if (buf==null) buf = ByteBuffer.allocate((int)Math.min(chunk, 64*1024));
+                    n = buffered(schannel, dchannel, position, Math.min(chunk, size-position), buf);
+                }
+                if (n<=0) {
+                    if (schannel.size()<size) {
+                        throw new IOException("copy source was truncated during copy");
+                    }
+                    if (++stalls>=STALLS) {
+                        throw new IOException("copy made no progress at offset "+position+" of "+size);
+                    }
+                    backoff(stalls);
+                    continue;
+                }
+                stalls = 0;
+                position += n;
+                if (checkpoint>0 && position-recorded>=checkpoint && position<size) {
+                    dchannel.force(false);
+                    record(src, dst, position);
+                    recorded = position;
+                }
+                if (progress!=null) {
+                    progress.progress(position, size, System.nanoTime()-start);
+                }
+            }
+            checkpoint(dst).delete();
+            Result result = new Result(size, resumed, System.nanoTime()-start);
+            result.holes = holes[0];
+            return result;
+        } finally {
+            if (fis!=null) fis.close();
+            if (raf!=null) raf.close();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.cleo.labs.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.cleo.labs.util.F.ClobberMode;
+import com.cleo.labs.util.F.Clobbered;
+
+/**
+ * Copies a batch of (typically many small) files on a pool of workers, so
+ * that the open, read, write and close of different files overlap.  Each
+ * worker reads a whole small file into a reusable direct buffer with one
+ * channel, hashes it from memory only if the destination already exists,
+ * and writes it out with one more channel, so the source is read once and
+ * no per-file buffers are allocated.  Files larger than the buffer are
+ * copied with {@link F#copy(File, File, ClobberMode, Copier)}.
+ * <p>
+ * The {@link ClobberMode} and MD5 comparison semantics are those of
+ * {@link F#copy(File, File, ClobberMode)}, applied per file.  Each job
+ * succeeds or fails on its own: a failure is recorded in the job's
+ * {@link Outcome} and does not abort the rest of the batch.
+ */
+public class CopyBatch {
+    /**
+     * A "case" class describing a copy, with the same arguments as
+     * {@link F#copy(File, File, ClobberMode)}.
+     */
+    public static class Job {
+        public File        src;
+        public File        dst;
+        public ClobberMode mode;
+        public Job (File src, File dst, ClobberMode mode) {
+            this.src  = src;
+            this.dst  = dst;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * A "case" class describing the outcome of a {@link Job}, including:
+     * <ul>
+     * <li>{@code job} the {@link Job}</li>
+     * <li>{@code result} the {@link Clobbered} result, or {@code null} if it failed</li>
+     * <li>{@code error} the failure, or {@code null} if it succeeded</li>
+     * <li>{@code bytes} the number of bytes copied (0 if matched)</li>
+     * <li>{@code nanos} the elapsed time of the copy (excluding time queued)</li>
+     * </ul>
+     */
+    public static class Outcome {
+        public Job       job;
+        public Clobbered result;
+        public Exception error;
+        public long      bytes;
+        public long      nanos;
+        public Outcome (Job job) {
+            this.job = job;
+        }
+        public boolean ok() {
+            return error==null;
+        }
+    }
+
+    /**
+     * A "case" class describing a batch, with the {@link Outcome}s in job order
+     * and the aggregate counts, bytes copied and elapsed time.
+     */
+    public static class Report {
+        public List<Outcome> outcomes;
+        public int           succeeded;
+        public int           failed;
+        public int           matched;
+        public int           copied;
+        public long          bytes;
+        public long          nanos;
+        /**
+         * Returns the throughput of the bytes copied in bytes per second.
+         * @return the throughput, or 0 if no time elapsed
+         */
+        public double throughput() {
+            return nanos>0 ? bytes*1e9/nanos : 0;
+        }
+        /**
+         * Returns the number of files completed (copied or matched) per second.
+         * @return the file rate, or 0 if no time elapsed
+         */
+        public double rate() {
+            return nanos>0 ? succeeded*1e9/nanos : 0;
+        }
+        public String toString() {
+            return String.format("%d files (%d copied, %d matched, %d failed) %d bytes in %.1f ms (%.1f MB/s, %.0f files/s)",
+                                 outcomes.size(), copied, matched, failed, bytes, nanos/1e6,
+                                 throughput()/(1024*1024), rate());
+        }
+    }
+
+    private int                       concurrency = 8;
+    private int                       buffer      = 1024*1024;
+    private Copier                    copier      = new Copier();
+    private BlockingQueue<ByteBuffer> buffers     = null;
+
+    /**
+     * Sets the number of files copied concurrently (default 8).
+     * @param concurrency the number of workers
+     * @return this
+     */
+    public CopyBatch concurrency(int concurrency) {
+        if (concurrency<=0) throw new IllegalArgumentException("concurrency must be positive");
+        this.concurrency = concurrency;
+        this.buffers     = null;
+        return this;
+    }
+
+    /**
+     * Sets the size of the direct buffer of each worker (default 1 MB), which is
+     * the largest file copied through memory.
+     * @param buffer the buffer size in bytes
+     * @return this
+     */
+    public CopyBatch buffer(int buffer) {
+        if (buffer<=0) throw new IllegalArgumentException("buffer must be positive");
+        this.buffer  = buffer;
+        this.buffers = null;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Copier} used for files larger than the buffer.
+     * @param copier the {@link Copier}
+     * @return this
+     */
+    public CopyBatch copier(Copier copier) {
+        this.copier = copier;
+        return this;
+    }
+
+    /**
+     * Returns the pool of direct buffers, which is kept for reuse by later batches.
+     */
+    private synchronized BlockingQueue<ByteBuffer> buffers() {
+        if (buffers==null) {
+            buffers = new ArrayBlockingQueue<ByteBuffer>(concurrency);
+            for (int i=0; i<concurrency; i++) {
+                buffers.add(ByteBuffer.allocateDirect(buffer));
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * Runs the {@code jobs}, waiting until all have succeeded or failed.
+     * @param jobs the {@link Job}s
+     * @return the {@link Report}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Report run(List<Job> jobs) throws InterruptedException {
+        long start = System.nanoTime();
+        final BlockingQueue<ByteBuffer> buffers = buffers();
+        ExecutorService       pool     = Executors.newFixedThreadPool(concurrency);
+        List<Outcome>         outcomes = new ArrayList<Outcome>(jobs.size());
+        List<Future<Outcome>> futures  = new ArrayList<Future<Outcome>>(jobs.size());
+        try {
+            for (final Job job : jobs) {
+                final Outcome outcome = new Outcome(job);
+                outcomes.add(outcome);
+                futures.add(pool.submit(() -> {
+                    long begin = System.nanoTime();
+                    ByteBuffer buf = buffers.take();
+                    try {
+                        copy(job, outcome, buf);
+                    } catch (Exception e) {
+                        outcome.error = e;
+                    } finally {
+                        buffers.add(buf);
+                    }
+                    outcome.nanos = System.nanoTime()-begin;
+                    return outcome;
+                }));
+            }
+            for (int i=0; i<futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    outcomes.get(i).error = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Report report = new Report();
+        report.outcomes = outcomes;
+        for (Outcome outcome : outcomes) {
+            if (outcome.ok()) {
+                report.succeeded++;
+                if (outcome.result.matched) {
+                    report.matched++;
+                } else {
+                    report.copied++;
+                    report.bytes += outcome.bytes;
+                }
+            } else {
+                report.failed++;
+            }
+        }
+        report.nanos = System.nanoTime()-start;
+        return report;
+    }
+
+    private void copy(Job job, Outcome outcome, ByteBuffer buf) throws Exception {
+        File dst = F.copyable(job.src, job.dst);
+        buf.clear();
+        long size;
+        FileChannel in = FileChannel.open(job.src.toPath(), StandardOpenOption.READ);
+        try {
+            size = in.size();
+            if (size>buf.capacity()) {
+                in.close();
+                in = null;
+                outcome.result = F.copy(job.src, dst, job.mode, copier);
+                outcome.bytes  = outcome.result.matched ? 0 : size;
+                return;
+            }
+            while (buf.position()<size && in.read(buf)>=0);
+        } finally {
+            if (in!=null) in.close();
+        }
+        buf.flip();
+        if (buf.remaining()!=size) {
+            throw new IOException("copy source changed size during copy");
+        }
+        byte[] hash = null;
+        if (dst.exists()) {
+            // hash from memory, since an existing file (or variant) may match
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(buf.duplicate());
+            hash = md.digest();
+        }
+        Clobbered result = F.clobber(dst, job.mode, "MD5", hash, size);
+        if (!result.matched) {
+            FileChannel out = FileChannel.open(result.file.toPath(), StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            } finally {
+                out.close();
+            }
+            outcome.bytes = size;
+        }
+        outcome.result = result;
+    }
+}
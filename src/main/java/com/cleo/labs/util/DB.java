@@ -287,7 +287,7 @@ public class DB {
             PreparedStatement stmt = null;
             try {
                 connect();
-                stmt = conn.prepareStatement("update "+table+" set "+S.join(",", S.lam(update_columns, "%s=?"))+
+                stmt = conn.prepareStatement("update "+table+" set "+S.join(",", update_columns, COLUMN_EQUALS)+
                                              where(query, args));
                 setObjects(stmt, update_args);
                 setObjects(stmt, args, update_args.size());
@@ -298,6 +298,7 @@ public class DB {
         }
     }
 
+    private static final S.Template COLUMN_EQUALS = new S.Template("%s=?");
 
     private static String where(String[] columns, Object...args) {
        if (columns==null || columns.length==0) {
@@ -317,7 +318,7 @@ public class DB {
         if (columns==null || columns.length==0) {
             return "";
         } else {
-            return " where "+ S.join(" and ", S.lam(columns, "%s=?"));
+            return " where "+ S.join(" and ", columns, COLUMN_EQUALS);
         }
     }
 
@@ -0,0 +1,602 @@
+package com.cleo.labs.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An rsync-style delta copy for large files that are mostly unchanged.  The
+ * existing destination is described by a signature: a weak rolling checksum
+ * and an MD5 digest of each of its fixed size blocks.  The source is then
+ * scanned with the rolling checksum, and every source window that matches a
+ * destination block is reused rather than rewritten, so that only the
+ * changed ranges are written.
+ * <p>
+ * If every reused block is still at its original offset, the changed ranges
+ * are written into the destination in place.  Otherwise the new content is
+ * assembled in a temporary file from the reused destination blocks and the
+ * changed source ranges, and moved over the destination atomically.
+ * <p>
+ * With a signature {@code cache} directory, the signature of the result is
+ * saved as it is computed during the scan (or read back after a plain copy),
+ * so a repeat delta against an unchanged destination does not need to read
+ * the destination at all.
+ * <p>
+ * A cached signature is trusted on the size and modification time of the
+ * destination, which a same-size change with a preserved modification time
+ * does not alter, so the result is always checked against an MD5 digest of
+ * the whole source taken during the scan.  If they differ, the source is
+ * copied in full instead.
+ */
+public class Delta {
+    public static final String SIGNATURE = ".sig";
+    public static final String DELTA     = ".delta";
+    public static final int    MIN_BLOCK = 4*1024;
+    public static final int    MAX_BLOCK = 1024*1024;
+
+    private static final int MAGIC  = 0x53494731; // SIG1
+    private static final int STRONG = 16;         // MD5
+
+    /**
+     * A "case" class describing a range of the new content, either reused from
+     * the destination at offset {@code from}, or literal from the source if
+     * {@code from} is {@code -1}.
+     */
+    public static class Op {
+        public long offset;
+        public long length;
+        public long from;
+        public Op (long offset, long length, long from) {
+            this.offset = offset;
+            this.length = length;
+            this.from   = from;
+        }
+        public boolean literal() {
+            return from<0;
+        }
+        public String toString() {
+            return literal() ? String.format("literal %d+%d", offset, length)
+                             : String.format("copy %d+%d from %d", offset, length, from);
+        }
+    }
+
+    /**
+     * A "case" class describing a delta copy, including:
+     * <ul>
+     * <li>{@code bytes} the size of the new content</li>
+     * <li>{@code literal} the number of bytes written from the source</li>
+     * <li>{@code reused} the number of bytes reused from the destination</li>
+     * <li>{@code block} the block size</li>
+     * <li>{@code inPlace} {@code true} if the destination was updated in place</li>
+     * <li>{@code cached} {@code true} if the destination signature came from the cache</li>
+     * <li>{@code ops} the {@link Op}s describing the new content</li>
+     * <li>{@code nanos} the elapsed time in nanoseconds</li>
+     * </ul>
+     */
+    public static class Result {
+        public long     bytes;
+        public long     literal;
+        public long     reused;
+        public int      block;
+        public boolean  inPlace;
+        public boolean  cached;
+        public List<Op> ops;
+        public long     nanos;
+        public String toString() {
+            return String.format("%d bytes (%d literal, %d reused in %d byte blocks%s%s) in %.1f ms",
+                                 bytes, literal, reused, block, inPlace ? ", in place" : "",
+                                 cached ? ", cached signature" : "", nanos/1e6);
+        }
+    }
+
+    /**
+     * The block signatures of a file with a given size and modification time,
+     * with a chained hash index on the weak checksums.
+     */
+    static class Signature {
+        long   size;
+        long   mtime;
+        int    block;
+        int    count;
+        int[]  weak;
+        byte[] strong;
+        int[]  table;
+        int[]  next;
+        Signature(long size, int block) {
+            this.size   = size;
+            this.block  = block;
+            this.count  = (int)(size/block);
+            this.weak   = new int[count];
+            this.strong = new byte[count*STRONG];
+        }
+        void index() {
+            int n = Integer.highestOneBit(Math.max(count, 1)*2);
+            table = new int[n];
+            next  = new int[count];
+            for (int i=count-1; i>=0; i--) {
+                int h = slot(weak[i], n-1);
+                next[i]  = table[h]-1;
+                table[h] = i+1;
+            }
+        }
+        static int slot(int weak, int mask) {
+            return (weak ^ (weak>>>15)) * 0x9E3779B1 >>> 7 & mask;
+        }
+        /**
+         * Returns the index of a block with checksum {@code w} whose content
+         * matches {@code buf[off,off+block)}, preferring block {@code aligned},
+         * or {@code -1} if there is none.
+         */
+        int find(int w, byte[] buf, int off, MessageDigest md, byte[] digest, long aligned) throws Exception {
+            int     found    = -1;
+            boolean digested = false;
+            for (int i=table[slot(w, table.length-1)]-1; i>=0; i=next[i]) {
+                if (weak[i]!=w) continue;
+                if (!digested) {
+                    md.update(buf, off, block);
+                    md.digest(digest, 0, STRONG);
+                    digested = true;
+                }
+                if (equal(digest, strong, i*STRONG)) {
+                    if (i==aligned) return i;
+                    if (found<0) found = i;
+                }
+            }
+            return found;
+        }
+        private static boolean equal(byte[] digest, byte[] strong, int off) {
+            for (int i=0; i<STRONG; i++) {
+                if (digest[i]!=strong[off+i]) return false;
+            }
+            return true;
+        }
+        void set(int i, int w, byte[] digest) {
+            weak[i] = w;
+            System.arraycopy(digest, 0, strong, i*STRONG, STRONG);
+        }
+    }
+
+    private int  block = 0;
+    private File cache = null;
+
+    /**
+     * Sets the block size, or 0 to choose one from the destination size (the default).
+     * @param block the block size in bytes
+     * @return this
+     */
+    public Delta block(int block) {
+        if (block<0) throw new IllegalArgumentException("block must not be negative");
+        this.block = block;
+        return this;
+    }
+
+    /**
+     * Sets the directory in which destination signatures are cached, or {@code null}
+     * for no cache (the default).
+     * @param cache the cache directory, which is created if needed
+     * @return this
+     */
+    public Delta cache(File cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int block(long size) {
+        if (block>0) return block;
+        // about sqrt(size), rounded down to a power of two
+        int b = Integer.highestOneBit((int)Math.min(Math.sqrt(size), MAX_BLOCK));
+        return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, b));
+    }
+
+    private static int weak(byte[] buf, int off, int len) {
+        int a = 0, b = 0;
+        for (int i=0; i<len; i++) {
+            int x = buf[off+i]&0xff;
+            a += x;
+            b += (len-i)*x;
+        }
+        return checksum(a, b);
+    }
+
+    private static int checksum(int a, int b) {
+        return (a&0xffff) | (b<<16);
+    }
+
+    /**
+     * Computes the signature of the {@code size} bytes of {@code channel}.
+     */
+    static Signature signature(FileChannel channel, long size, int block) throws IOException {
+        Signature     sig    = new Signature(size, block);
+        MessageDigest md     = md5();
+        byte[]        digest = new byte[STRONG];
+        ByteBuffer    buf    = ByteBuffer.allocate(block);
+        try {
+            for (int i=0; i<sig.count; i++) {
+                buf.clear();
+                long position = (long)i*block;
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, position+buf.position())<0) {
+                        throw new IOException("file was truncated while reading its signature");
+                    }
+                }
+                md.update(buf.array(), 0, block);
+                md.digest(digest, 0, STRONG);
+                sig.set(i, weak(buf.array(), 0, block), digest);
+            }
+        } catch (java.security.DigestException e) {
+            throw new IOException(e);
+        }
+        return sig;
+    }
+
+    private File signatureFile(File dst) {
+        try {
+            String key = F.hex(MessageDigest.getInstance("SHA-1")
+                                            .digest(dst.getAbsolutePath().getBytes(StandardCharsets.UTF_8)));
+            return new File(cache, key+SIGNATURE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads the cached signature of {@code dst}, if there is one and it is
+     * still valid for the current size and modification time.
+     */
+    private Signature load(File dst) {
+        if (cache==null) return null;
+        File f = signatureFile(dst);
+        if (!f.isFile()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt()!=MAGIC) return null;
+            long size  = in.readLong();
+            long mtime = in.readLong();
+            int  block = in.readInt();
+            if (size!=dst.length() || mtime!=dst.lastModified() || block<=0 || (this.block>0 && block!=this.block)) {
+                return null;
+            }
+            Signature sig = new Signature(size, block);
+            sig.mtime = mtime;
+            for (int i=0; i<sig.count; i++) {
+                sig.weak[i] = in.readInt();
+            }
+            in.readFully(sig.strong);
+            return sig;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in!=null) try {in.close();} catch (IOException ignore) {}
+        }
+    }
+
+    private void save(File dst, Signature sig) {
+        if (cache==null) return;
+        if (!cache.isDirectory() && !cache.mkdirs()) return;
+        File f   = signatureFile(dst);
+        File tmp = new File(f.getPath()+".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeLong(sig.size);
+            out.writeLong(sig.mtime);
+            out.writeInt(sig.block);
+            for (int i=0; i<sig.count; i++) {
+                out.writeInt(sig.weak[i]);
+            }
+            out.write(sig.strong);
+            out.close();
+            out = null;
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ignore) {
+            // the cache is only an optimization
+        } finally {
+            if (out!=null) try {out.close();} catch (IOException ignore) {}
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Scans the source with the rolling checksum against the destination
+     * signature {@code sig}, producing the {@link Op}s for the new content and
+     * the signature of the new content {@code next} along the way.
+     */
+    private static class Scan {
+        private FileChannel   channel;
+        private long          size;
+        private Signature     sig;
+        private Signature     next;
+        private int           block;
+        private byte[]        buf;
+        private long          base   = 0; // source offset of buf[0]
+        private int           limit  = 0; // valid bytes in buf
+        private long          signed = 0; // source offset of the next block of next to compute
+        private MessageDigest md     = md5();
+        private MessageDigest whole  = md5(); // of the entire source, as it is read
+        private byte[]        digest = new byte[STRONG];
+        private List<Op>      ops    = new ArrayList<Op>();
+
+        Scan(FileChannel channel, long size, Signature sig) {
+            this.channel = channel;
+            this.size    = size;
+            this.sig     = sig;
+            this.block   = sig.block;
+            this.next    = new Signature(size, block);
+            this.buf     = new byte[Math.max(4*block, 1024*1024)];
+        }
+
+        /**
+         * Makes sure the source up to offset {@code need} is in {@code buf},
+         * computing the signature of any blocks before discarding them.
+         */
+        private void fill(long need, long pos) throws Exception {
+            if (need<=base+limit) return;
+            sign();
+            long keep  = Math.min(pos, signed);
+            int  shift = (int)(keep-base);
+            System.arraycopy(buf, shift, buf, 0, limit-shift);
+            base   = keep;
+            limit -= shift;
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            while (base+limit<need) {
+                bb.limit(buf.length).position(limit);
+                int n = channel.read(bb, base+limit);
+                if (n<0) throw new IOException("source was truncated during delta");
+                whole.update(buf, limit, n);
+                limit += n;
+            }
+        }
+
+        private void sign() throws Exception {
+            while (signed+block<=base+limit && signed+block<=size) {
+                int off = (int)(signed-base);
+                md.update(buf, off, block);
+                md.digest(digest, 0, STRONG);
+                next.set((int)(signed/block), weak(buf, off, block), digest);
+                signed += block;
+            }
+        }
+
+        private void literal(long offset, long length) {
+            if (length>0) ops.add(new Op(offset, length, -1));
+        }
+
+        private void copy(long offset, long from) {
+            Op last = ops.isEmpty() ? null : ops.get(ops.size()-1);
+            if (last!=null && !last.literal() && last.offset+last.length==offset && last.from+last.length==from) {
+                last.length += block;
+            } else {
+                ops.add(new Op(offset, block, from));
+            }
+        }
+
+        List<Op> scan() throws Exception {
+            long    pos    = 0;
+            long    lit    = 0;
+            boolean rolled = false;
+            int     a = 0, b = 0;
+            while (pos+block<=size) {
+                fill(Math.min(pos+block+1, size), pos);
+                int i = (int)(pos-base);
+                if (!rolled) {
+                    a = 0;
+                    b = 0;
+                    for (int k=0; k<block; k++) {
+                        int x = buf[i+k]&0xff;
+                        a += x;
+                        b += (block-k)*x;
+                    }
+                    rolled = true;
+                }
+                int match = sig.find(checksum(a, b), buf, i, md, digest, pos%block==0 ? pos/block : -1);
+                if (match>=0) {
+                    literal(lit, pos-lit);
+                    copy(pos, (long)match*block);
+                    pos   += block;
+                    lit    = pos;
+                    rolled = false;
+                } else {
+                    if (pos+block<size) {
+                        int out = buf[i]&0xff;
+                        a += (buf[i+block]&0xff) - out;
+                        b += a - block*out;
+                    }
+                    pos++;
+                }
+            }
+            literal(lit, size-lit);
+            fill(size, signed);
+            sign();
+            return ops;
+        }
+
+        /**
+         * Returns the MD5 digest of the source, once {@link #scan()} has read all of it.
+         */
+        byte[] digest() {
+            return whole.digest();
+        }
+    }
+
+    private static void transfer(FileChannel from, long position, long length, FileChannel to) throws IOException {
+        while (length>0) {
+            long n = from.transferTo(position, length, to);
+            if (n<=0) {
+                if (from.size()<position+length) {
+                    throw new IOException("file was truncated during delta");
+                }
+                continue;
+            }
+            position += n;
+            length   -= n;
+        }
+    }
+
+    /**
+     * Updates {@code dst} to the content of {@code src}, writing only the
+     * ranges that differ from the existing content of {@code dst}.  If
+     * {@code dst} does not exist (or is smaller than one block) it is simply
+     * copied.
+     * @param src the source {@link File}
+     * @param dst the destination {@link File}
+     * @return the {@link Result}
+     * @throws Exception
+     */
+    public Result copy(File src, File dst) throws Exception {
+        long   start  = System.nanoTime();
+        Result result = new Result();
+        result.bytes  = src.length();
+        Signature sig = load(dst);
+        result.cached = sig!=null;
+        FileInputStream  fis = null;
+        RandomAccessFile raf = null;
+        try {
+            fis = new FileInputStream(src);
+            FileChannel schannel = fis.getChannel();
+            long size = schannel.size();
+            result.bytes = size;
+            if (sig==null && dst.isFile()) {
+                raf = new RandomAccessFile(dst, "r");
+                sig = signature(raf.getChannel(), raf.length(), block(raf.length()));
+                raf.close();
+                raf = null;
+            }
+            if (sig==null || sig.count==0) {
+                fis.close();
+                fis = null;
+                return full(src, dst, result, sig==null ? block(size) : sig.block, start);
+            }
+            sig.index();
+            result.block = sig.block;
+            Scan scan = new Scan(schannel, size, sig);
+            result.ops = scan.scan();
+            byte[] digest = scan.digest();
+            boolean aligned = true;
+            for (Op op : result.ops) {
+                if (op.literal()) {
+                    result.literal += op.length;
+                } else {
+                    result.reused += op.length;
+                    aligned = aligned && op.from==op.offset;
+                }
+            }
+            result.inPlace = aligned;
+            if (aligned) {
+                raf = new RandomAccessFile(dst, "rw");
+                FileChannel dchannel = raf.getChannel();
+                for (Op op : result.ops) {
+                    if (op.literal()) {
+                        dchannel.position(op.offset);
+                        transfer(schannel, op.offset, op.length, dchannel);
+                    }
+                }
+                dchannel.truncate(size);
+                raf.close();
+                raf = null;
+                if (!Arrays.equals(digest, F.hash(dst, "MD5"))) {
+                    return redo(src, dst, result, start);
+                }
+            } else {
+                File tmp = File.createTempFile("."+dst.getName()+".", DELTA, dst.getAbsoluteFile().getParentFile());
+                try {
+                    RandomAccessFile old = new RandomAccessFile(dst, "r");
+                    try {
+                        raf = new RandomAccessFile(tmp, "rw");
+                        FileChannel dchannel = old.getChannel();
+                        FileChannel tchannel = raf.getChannel();
+                        for (Op op : result.ops) {
+                            if (op.literal()) {
+                                transfer(schannel, op.offset, op.length, tchannel);
+                            } else {
+                                transfer(dchannel, op.from, op.length, tchannel);
+                            }
+                        }
+                        raf.close();
+                        raf = null;
+                    } finally {
+                        old.close();
+                    }
+                    if (!Arrays.equals(digest, F.hash(tmp, "MD5"))) {
+                        return redo(src, dst, result, start);
+                    }
+                    Files.move(tmp.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    tmp.delete();
+                }
+            }
+            scan.next.mtime = dst.lastModified();
+            save(dst, scan.next);
+        } finally {
+            if (fis!=null) fis.close();
+            if (raf!=null) raf.close();
+        }
+        result.nanos = System.nanoTime()-start;
+        return result;
+    }
+
+    /**
+     * Copies {@code src} to {@code dst} in full, signing the copy if there is
+     * a cache, so the next delta to {@code dst} starts from the cache.
+     */
+    private Result full(File src, File dst, Result result, int block, long start) throws Exception {
+        new Copier().copy(src, dst);
+        long size = dst.length();
+        if (cache!=null) {
+            RandomAccessFile raf = new RandomAccessFile(dst, "r");
+            try {
+                Signature next = signature(raf.getChannel(), size, block);
+                next.mtime = dst.lastModified();
+                save(dst, next);
+            } finally {
+                raf.close();
+            }
+        }
+        result.block   = block;
+        result.bytes   = size;
+        result.literal = size;
+        result.reused  = 0;
+        result.inPlace = false;
+        result.ops     = new ArrayList<Op>();
+        result.ops.add(new Op(0, size, -1));
+        result.nanos   = System.nanoTime()-start;
+        return result;
+    }
+
+    /**
+     * Recovers from a delta whose result does not match the source, because
+     * the signature no longer described the destination, by discarding the
+     * cached signature and copying the source in full.
+     */
+    private Result redo(File src, File dst, Result result, long start) throws Exception {
+        if (cache!=null) {
+            signatureFile(dst).delete();
+        }
+        return full(src, dst, result, result.block, start);
+    }
+}
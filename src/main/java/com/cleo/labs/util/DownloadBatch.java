@@ -0,0 +1,255 @@
+package com.cleo.labs.util;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import com.cleo.labs.util.F.ClobberMode;
+import com.cleo.labs.util.F.Clobbered;
+
+/**
+ * Runs a batch of downloads through a {@link Downloader} with bounded
+ * concurrency overall and per host.  Virtual threads are used when the
+ * runtime supports them, and a fixed thread pool otherwise.  Each job
+ * succeeds or fails on its own: a failure is recorded in the job's
+ * {@link Outcome} and does not abort the rest of the batch.
+ */
+public class DownloadBatch {
+    /**
+     * A "case" class describing a download, with the same arguments as
+     * {@link F#download(String, File, String, byte[], ClobberMode)}.
+     */
+    public static class Job {
+        public String      url;
+        public File        dst;
+        public String      alg;
+        public byte[]      hash;
+        public ClobberMode mode;
+        public Job (String url, File dst, String alg, byte[] hash, ClobberMode mode) {
+            this.url  = url;
+            this.dst  = dst;
+            this.alg  = alg;
+            this.hash = hash;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * A "case" class describing the outcome of a {@link Job}, including:
+     * <ul>
+     * <li>{@code job} the {@link Job}</li>
+     * <li>{@code result} the {@link Clobbered} result, or {@code null} if it failed</li>
+     * <li>{@code error} the failure, or {@code null} if it succeeded</li>
+     * <li>{@code nanos} the elapsed time of the download (excluding time queued)</li>
+     * </ul>
+     */
+    public static class Outcome {
+        public Job       job;
+        public Clobbered result;
+        public Exception error;
+        public long      nanos;
+        public Outcome (Job job) {
+            this.job = job;
+        }
+        public boolean ok() {
+            return error==null;
+        }
+    }
+
+    /**
+     * A "case" class describing a batch, with the {@link Outcome}s in job order
+     * and the aggregate counts and elapsed time.
+     */
+    public static class Report {
+        public List<Outcome> outcomes;
+        public int           succeeded;
+        public int           failed;
+        public int           matched;
+        public long          nanos;
+        public String toString() {
+            return String.format("%d downloads (%d matched, %d failed) in %.1f ms",
+                                 outcomes.size(), matched, failed, nanos/1e6);
+        }
+    }
+
+    private Downloader downloader  = new Downloader();
+    private int        concurrency = 8;
+    private int        perHost     = 4;
+
+    public DownloadBatch downloader(Downloader downloader) {
+        this.downloader = downloader;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of concurrent downloads (default 8).
+     * @param concurrency the limit
+     * @return this
+     */
+    public DownloadBatch concurrency(int concurrency) {
+        if (concurrency<=0) throw new IllegalArgumentException("concurrency must be positive");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of concurrent downloads from one host (default 4).
+     * @param perHost the limit
+     * @return this
+     */
+    public DownloadBatch perHost(int perHost) {
+        if (perHost<=0) throw new IllegalArgumentException("perHost must be positive");
+        this.perHost = perHost;
+        return this;
+    }
+
+    /**
+     * Returns a virtual thread per task executor if the runtime has one, or {@code null}.
+     */
+    private static ExecutorService virtual() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception notSupported) {
+            return null;
+        }
+    }
+
+    private static String host(String url) {
+        try {
+            URL u = new URL(url);
+            int port = u.getPort()==-1 ? u.getDefaultPort() : u.getPort();
+            return u.getHost().toLowerCase()+":"+port;
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    /**
+     * The downloads from one host: the number running, and those waiting for
+     * one of them to finish.  Guarded by the map of lanes.
+     */
+    private static class Lane {
+        private int             active  = 0;
+        private Deque<Runnable> waiting = new ArrayDeque<Runnable>();
+    }
+
+    /**
+     * Runs {@code task} on {@code pool} if its {@code lane} has room, or queues
+     * it behind the running downloads of its host, so that no pool thread
+     * ever waits on a per-host limit.
+     */
+    private void dispatch(Map<String,Lane> lanes, Lane lane, Runnable task, ExecutorService pool) {
+        synchronized (lanes) {
+            if (lane.active>=perHost) {
+                lane.waiting.add(task);
+                return;
+            }
+            lane.active++;
+        }
+        pool.execute(task);
+    }
+
+    /**
+     * Releases a place in {@code lane}, handing it to the next waiting task if any.
+     */
+    private static void release(Map<String,Lane> lanes, Lane lane, ExecutorService pool) {
+        Runnable next;
+        synchronized (lanes) {
+            next = lane.waiting.poll();
+            if (next==null) {
+                lane.active--;
+                return;
+            }
+        }
+        try {
+            pool.execute(next);
+        } catch (RejectedExecutionException shutdown) {
+            // the batch was interrupted
+        }
+    }
+
+    /**
+     * Runs the {@code jobs}, waiting until all have succeeded or failed.
+     * Jobs beyond the per-host limit are queued rather than started, so
+     * they do not hold up jobs for other hosts.
+     * @param jobs the {@link Job}s
+     * @return the {@link Report}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Report run(List<Job> jobs) throws InterruptedException {
+        long start = System.nanoTime();
+        final Semaphore        global = new Semaphore(concurrency);
+        final Map<String,Lane> lanes  = new HashMap<String,Lane>();
+        final CountDownLatch   done   = new CountDownLatch(jobs.size());
+        ExecutorService pool = virtual();
+        if (pool==null) {
+            pool = Executors.newFixedThreadPool(concurrency);
+        }
+        final ExecutorService executor = pool;
+        List<Outcome> outcomes = new ArrayList<Outcome>(jobs.size());
+        try {
+            for (final Job job : jobs) {
+                final Outcome outcome = new Outcome(job);
+                outcomes.add(outcome);
+                final Lane lane;
+                synchronized (lanes) {
+                    String host = host(job.url);
+                    Lane l = lanes.get(host);
+                    if (l==null) {
+                        l = new Lane();
+                        lanes.put(host, l);
+                    }
+                    lane = l;
+                }
+                dispatch(lanes, lane, () -> {
+                    try {
+                        global.acquire();
+                        try {
+                            long begin = System.nanoTime();
+                            try {
+                                outcome.result = downloader.download(job.url, job.dst, job.alg, job.hash, job.mode);
+                            } catch (Exception e) {
+                                outcome.error = e;
+                            }
+                            outcome.nanos = System.nanoTime()-begin;
+                        } finally {
+                            global.release();
+                        }
+                    } catch (InterruptedException e) {
+                        outcome.error = e;
+                    } finally {
+                        done.countDown();
+                        release(lanes, lane, executor);
+                    }
+                }, executor);
+            }
+            done.await();
+        } finally {
+            pool.shutdownNow();
+        }
+        Report report = new Report();
+        report.outcomes = outcomes;
+        for (Outcome outcome : outcomes) {
+            if (outcome.ok()) {
+                report.succeeded++;
+                if (outcome.result!=null && outcome.result.matched) report.matched++;
+            } else {
+                report.failed++;
+            }
+        }
+        report.nanos = System.nanoTime()-start;
+        return report;
+    }
+}
@@ -0,0 +1,434 @@
+package com.cleo.labs.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A local cache of downloaded content for conditional {@code GET}s.  Each
+ * cached URL is kept as a {@code key.body} file holding the content and a
+ * {@code key.meta} properties file holding the validators ({@code ETag} and
+ * {@code Last-Modified}) and the content hash, where {@code key} is the
+ * SHA-1 of the URL.  A cached URL is revalidated with {@code If-None-Match}
+ * and {@code If-Modified-Since}, and the cached body is served on a
+ * {@code 304 Not Modified}.
+ * <p>
+ * Entries older than {@code maxAge} are evicted (and so fully downloaded
+ * again), and if the cached bodies exceed {@code maxBytes} the least recently
+ * used entries are evicted until they fit.
+ * <p>
+ * A new entry is published by writing its meta first and moving its body into
+ * place last, under a lock on its key.  The lock is also held while a cached
+ * body is {@link #serve served}, and {@link #evict()} skips keys that are in
+ * use, so an entry is never replaced or evicted while it is being read.
+ */
+public class DownloadCache {
+    public static final String BODY = ".body";
+    public static final String META = ".meta";
+
+    /**
+     * A "case" class describing a cached download, including:
+     * <ul>
+     * <li>{@code url} the source URL</li>
+     * <li>{@code etag} and {@code modified} the validators (either may be {@code null})</li>
+     * <li>{@code alg} and {@code hash} the content hash</li>
+     * <li>{@code hashes} every content hash known, indexed by algorithm ignoring case</li>
+     * <li>{@code size} the content length</li>
+     * <li>{@code stored} the time the content was downloaded</li>
+     * <li>{@code body} the {@link File} holding the content</li>
+     * <li>{@code revalidated} {@code true} if the content was served from the cache on a 304</li>
+     * </ul>
+     */
+    public static class Entry {
+        public String  url;
+        public String  etag;
+        public String  modified;
+        public String  alg;
+        public byte[]  hash;
+        public Map<String,byte[]> hashes = new TreeMap<String,byte[]>(String.CASE_INSENSITIVE_ORDER);
+        public long    size;
+        public long    stored;
+        public File    body;
+        public boolean revalidated;
+    }
+
+    public static final int LOCKS = 64;
+
+    private File root;
+    private long maxBytes = Long.MAX_VALUE;
+    private long maxAge   = Long.MAX_VALUE;
+    private ReadWriteLock[] locks = new ReadWriteLock[LOCKS]; // striped by key
+
+    /**
+     * Creates a cache in directory {@code root}, which is created if needed.
+     * @param root the cache directory
+     * @throws IOException if the directory can not be created
+     */
+    public DownloadCache(File root) throws IOException {
+        this.root = root;
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("can not create download cache "+root);
+        }
+        for (int i=0; i<locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Sets the maximum total size of the cached content (default unlimited).
+     * @param maxBytes the maximum size in bytes
+     * @return this
+     */
+    public DownloadCache maxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Sets the maximum age of a cached entry (default unlimited).
+     * @param maxAge the maximum age in milliseconds
+     * @return this
+     */
+    public DownloadCache maxAge(long maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    private static String key(String url) {
+        try {
+            return F.hex(MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File body(String key) {
+        return new File(root, key+BODY);
+    }
+
+    private File meta(String key) {
+        return new File(root, key+META);
+    }
+
+    private ReadWriteLock lock(String key) {
+        return locks[(key.hashCode()&Integer.MAX_VALUE)%locks.length];
+    }
+
+    /**
+     * Returns the cached {@link Entry} for {@code url}, or {@code null} if
+     * there is none or it has expired.
+     * @param url the URL
+     * @return the {@link Entry} or {@code null}
+     */
+    public Entry get(String url) {
+        String key  = key(url);
+        Lock   lock = lock(key).readLock();
+        lock.lock();
+        try {
+            Entry e = load(key);
+            if (e==null || !url.equals(e.url) || e.size!=e.body.length() ||
+                System.currentTimeMillis()-e.stored > maxAge) {
+                return null;
+            }
+            return e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the meta of {@code key}, or returns {@code null} if it is missing
+     * or incomplete.  The caller holds the lock on {@code key}.
+     */
+    private Entry load(String key) {
+        File meta = meta(key);
+        File body = body(key);
+        if (!meta.isFile() || !body.isFile()) {
+            return null;
+        }
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(meta);
+            props.load(in);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in!=null) try {in.close();} catch (IOException ignore) {}
+        }
+        Entry e = new Entry();
+        e.url      = props.getProperty("url");
+        e.etag     = props.getProperty("etag");
+        e.modified = props.getProperty("modified");
+        e.alg      = props.getProperty("alg");
+        e.hash     = F.hex(props.getProperty("hash"));
+        e.body     = body;
+        try {
+            e.size   = Long.parseLong(props.getProperty("size"));
+            e.stored = Long.parseLong(props.getProperty("stored"));
+        } catch (NumberFormatException bad) {
+            return null;
+        }
+        if (e.alg==null || e.hash==null) {
+            return null;
+        }
+        e.hashes.put(e.alg, e.hash);
+        for (String name : props.stringPropertyNames()) {
+            byte[] hash = name.startsWith("hash.") ? F.hex(props.getProperty(name)) : null;
+            if (hash!=null) {
+                e.hashes.put(name.substring("hash.".length()), hash);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Writes the meta of {@code key} for {@link Entry} {@code e}, whose primary
+     * hash is {@code alg}.  The caller holds the write lock on {@code key}.
+     */
+    private void save(String key, Entry e, String alg) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("url", e.url);
+        if (e.etag!=null) props.setProperty("etag", e.etag);
+        if (e.modified!=null) props.setProperty("modified", e.modified);
+        props.setProperty("alg", alg);
+        props.setProperty("hash", F.hex(e.hashes.get(alg)));
+        for (Map.Entry<String,byte[]> hash : e.hashes.entrySet()) {
+            if (!hash.getKey().equalsIgnoreCase(alg)) {
+                props.setProperty("hash."+hash.getKey(), F.hex(hash.getValue()));
+            }
+        }
+        props.setProperty("size", String.valueOf(e.size));
+        props.setProperty("stored", String.valueOf(e.stored));
+        File meta = meta(key);
+        File tmp  = File.createTempFile(key, ".tmp", root);
+        try {
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(tmp);
+                props.store(out, null);
+            } finally {
+                if (out!=null) out.close();
+            }
+            tmp.setLastModified(e.stored); // for maxAge eviction
+            Files.move(tmp.toPath(), meta.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Publishes a new entry: the meta is written first and the body moved into
+     * place last, so a body is never visible with the meta of another.
+     */
+    private void put(String key, File tmp, Entry e) throws IOException {
+        Lock lock = lock(key).writeLock();
+        lock.lock();
+        try {
+            save(key, e, e.alg);
+            Files.move(tmp.toPath(), e.body.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records hash {@code hash} computed with {@code alg} in the meta of
+     * {@link Entry} {@code e}, if it is still the current entry.
+     */
+    private void persist(String key, Entry e, String alg, byte[] hash) {
+        Lock lock = lock(key).writeLock();
+        lock.lock();
+        try {
+            Entry current = load(key);
+            if (current!=null && current.stored==e.stored && current.size==e.size) {
+                current.hashes.put(alg, hash);
+                save(key, current, current.alg);
+            }
+        } catch (IOException ignore) {
+            // the hash is only an optimization
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} unless it is in use.
+     * @return {@code true} if removed
+     */
+    private boolean remove(String key) {
+        Lock lock = lock(key).writeLock();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            meta(key).delete();
+            body(key).delete();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the body of {@link Entry} {@code e} to {@code dst} while holding
+     * the lock on its key, so it can not be replaced or evicted meanwhile.
+     * @param e the {@link Entry} returned by {@link #fetch}
+     * @param dst the destination {@link File}
+     * @return {@code true} if copied, or {@code false} if {@code e} was
+     *         replaced or evicted since it was fetched
+     * @throws Exception
+     */
+    public boolean serve(Entry e, File dst) throws Exception {
+        String key  = key(e.url);
+        Lock   lock = lock(key).readLock();
+        lock.lock();
+        try {
+            Entry current = load(key);
+            if (current==null || current.stored!=e.stored || current.size!=e.size || e.body.length()!=e.size) {
+                return false;
+            }
+            new Copier().copy(e.body, dst);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fetches {@code url} through the cache: a cached entry is revalidated with
+     * a conditional {@code GET} and served on {@code 304}, otherwise the new
+     * content is downloaded into the cache and hashed with {@code alg} as it
+     * streams in.
+     * @param downloader the {@link Downloader} used to open the connection
+     * @param url the URL
+     * @param alg the hash algorithm for the content hash
+     * @return the fresh or revalidated {@link Entry}
+     * @throws Exception
+     */
+    public Entry fetch(Downloader downloader, URL url, String alg) throws Exception {
+        String        key    = key(url.toString());
+        Entry         cached = get(url.toString());
+        URLConnection u      = downloader.open(url);
+        if (cached!=null && u instanceof HttpURLConnection) {
+            if (cached.etag!=null) u.setRequestProperty("If-None-Match", cached.etag);
+            if (cached.modified!=null) u.setRequestProperty("If-Modified-Since", cached.modified);
+        }
+        if (u instanceof HttpURLConnection) {
+            HttpURLConnection http = (HttpURLConnection)u;
+            int code = http.getResponseCode();
+            if (code==HttpURLConnection.HTTP_NOT_MODIFIED && cached!=null) {
+                http.disconnect();
+                cached.body.setLastModified(System.currentTimeMillis()); // for LRU eviction
+                cached.revalidated = true;
+                if (!alg.equalsIgnoreCase(cached.alg)) {
+                    byte[] hash = cached.hashes.get(alg);
+                    if (hash==null) {
+                        hash = F.hash(cached.body, alg);
+                        cached.hashes.put(alg, hash);
+                        persist(key, cached, alg, hash);
+                    }
+                    cached.hash = hash;
+                    cached.alg  = alg;
+                }
+                return cached;
+            } else if (code!=HttpURLConnection.HTTP_OK) {
+                throw new IOException("download failed: HTTP "+code+" "+http.getResponseMessage());
+            }
+        }
+        Entry e = new Entry();
+        e.url      = url.toString();
+        e.etag     = u.getHeaderField("ETag");
+        e.modified = u.getHeaderField("Last-Modified");
+        e.alg      = alg;
+        e.body     = body(key);
+        MessageDigest md  = MessageDigest.getInstance(alg);
+        File          tmp = File.createTempFile(key, ".tmp", root);
+        InputStream   in  = null;
+        OutputStream  out = null;
+        try {
+            in  = u.getInputStream();
+            out = new FileOutputStream(tmp);
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+                md.update(buf, 0, n);
+                e.size += n;
+            }
+        } catch (Exception failed) {
+            if (out!=null) out.close();
+            out = null;
+            tmp.delete();
+            throw failed;
+        } finally {
+            if (in !=null) in.close();
+            if (out!=null) out.close();
+        }
+        e.hash   = md.digest();
+        e.hashes.put(alg, e.hash);
+        e.stored = System.currentTimeMillis();
+        put(key, tmp, e);
+        evict();
+        return e;
+    }
+
+    /**
+     * Evicts expired entries, and then the least recently used entries until
+     * the cached content fits in {@code maxBytes}.  Entries that are being
+     * published or served are left alone.
+     */
+    public synchronized void evict() {
+        File[] bodies = root.listFiles();
+        if (bodies==null) return;
+        List<File> live  = new ArrayList<File>();
+        long       total = 0;
+        long       now   = System.currentTimeMillis();
+        for (File body : bodies) {
+            String name = body.getName();
+            if (!name.endsWith(BODY)) continue;
+            String key = name.substring(0, name.length()-BODY.length());
+            if (!meta(key).isFile() || now-meta(key).lastModified() > maxAge) {
+                remove(key);
+            } else {
+                live.add(body);
+                total += body.length();
+            }
+        }
+        if (total > maxBytes) {
+            Collections.sort(live, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (File body : live) {
+                if (total <= maxBytes) break;
+                long   size = body.length();
+                String name = body.getName();
+                if (remove(name.substring(0, name.length()-BODY.length()))) {
+                    total -= size;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package com.cleo.labs.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.cleo.labs.util.F.ClobberMode;
+import com.cleo.labs.util.F.Clobbered;
+
+/**
+ * A configurable downloader behind {@link F#download(String, File, String, byte[], ClobberMode)}.
+ * By default the content is streamed directly into the destination file.
+ * <p>
+ * In {@code resume} mode the content is staged in a {@code dst.part} file, and
+ * the entity validator ({@code ETag} or {@code Last-Modified}) is kept in a
+ * {@code dst.part.validator} file.  A later attempt continues the partial file
+ * with a {@code Range} request conditioned by {@code If-Range}, so a changed
+ * resource is downloaded from the start again.  The digest is updated as the
+ * bytes stream in and is verified against the expected hash before the part
+ * file is atomically renamed into place.
+ * <p>
+ * In {@code segments} mode the resource is first probed with a {@code HEAD}
+ * request.  If the server reports a {@code Content-Length} and
+ * {@code Accept-Ranges: bytes}, the part file is preallocated and the byte
+ * ranges are fetched concurrently with positional writes, each conditioned by
+ * {@code If-Range} so that a resource changing mid-download is detected.
+ * Otherwise the download falls back to a single stream.
+ * <p>
+ * With a {@link DownloadCache} the download is a conditional {@code GET}
+ * through the cache, and the destination is populated from the cached body.
+ * Since the content hash is cached along with the body, an existing
+ * destination with the same content is matched without refetching or
+ * rehashing the source.
+ */
+public class Downloader {
+    public static final String PART      = ".part";
+    public static final String VALIDATOR = ".validator";
+
+    private String  agent   = "curl/7.37.1";
+    private int     timeout = 0;
+    private boolean resume  = false;
+    private int     segments = 1;
+    private DownloadCache cache = null;
+
+    public static final long MIN_SEGMENT = 64*1024;
+    public static final long MAX_SPOOL   = Integer.MAX_VALUE-8; // the largest array a Spool can grow to
+
+    public Downloader agent(String agent) {
+        this.agent = agent;
+        return this;
+    }
+
+    /**
+     * Sets the connect and read timeouts (default 0, meaning no timeout).
+     * @param timeout the timeout in milliseconds
+     * @return this
+     */
+    public Downloader timeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public Downloader resume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * Sets the {@link DownloadCache} used for conditional downloads, or
+     * {@code null} for none (the default).
+     * @param cache the {@link DownloadCache} or {@code null}
+     * @return this
+     */
+    public Downloader cache(DownloadCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Sets the number of concurrent range requests used for large downloads
+     * (default 1, meaning a single stream).
+     * @param segments the number of segments
+     * @return this
+     */
+    public Downloader segments(int segments) {
+        if (segments<=0) throw new IllegalArgumentException("segments must be positive");
+        this.segments = segments;
+        return this;
+    }
+
+    /**
+     * Returns the {@code .part} staging {@link File} for destination {@code dst}.
+     * @param dst the destination {@link File}
+     * @return the staging {@link File}
+     */
+    public static File part(File dst) {
+        return new File(dst.getPath()+PART);
+    }
+
+    private static File validator(File part) {
+        return new File(part.getPath()+VALIDATOR);
+    }
+
+    /**
+     * Resolves the destination for {@link URL} {@code url}: if {@code dst} is a
+     * directory, the final path element parsed from {@code url} is appended.
+     * @param url the source {@link URL}
+     * @param dst the destination file or directory
+     * @return the destination {@link File}
+     */
+    public static File target(URL url, File dst) {
+        if (dst.isDirectory()) {
+            // figure out the intended name
+            String[] names = url.getPath().split("/"); // trailing / is ignored by split
+            String name = names.length>0 ? names[names.length-1] : url.getHost();
+            dst = new File(dst, name);
+        }
+        return dst;
+    }
+
+    URLConnection open(URL url) throws IOException {
+        URLConnection u = url.openConnection();
+        u.setRequestProperty("User-Agent", agent);
+        u.setUseCaches(false);
+        u.setConnectTimeout(timeout);
+        u.setReadTimeout(timeout);
+        return u;
+    }
+
+    /**
+     * Conditionally downloads {@link URL} {@code src} to {@code dst} subject to the
+     * {@link ClobberMode} clobbering policy and a hash comparison if {@code dst}
+     * already exists.
+     * Note that {@code dst} may be a directory, in which case it is resolved by
+     * appending the final path element parsed from {@code src}.
+     * @param src the source {@link URL} as a {@link String}
+     * @param dst the intended destination file (or directory), which may or may not exist already
+     * @param alg the hash algorithm
+     * @param hash the hash for comparison (may be {@code null})
+     * @param mode the {@link ClobberMode} policy
+     * @return a {@link Clobbered} indicating the match status and actual destination file
+     * @throws Exception
+     */
+    public Clobbered download(String src, File dst, String alg, byte[] hash, ClobberMode mode) throws Exception {
+        URL url = new URL(src);
+        dst = target(url, dst);
+        if (cache!=null) {
+            return cached(url, dst, alg, hash, mode);
+        }
+        if (segments>1) {
+            Probe probe = probe(url);
+            if (probe!=null) {
+                return segmented(url, dst, alg, hash, mode, probe);
+            }
+        }
+        if (resume) {
+            return resumable(url, dst, alg, hash, mode);
+        }
+        Clobbered result = F.clobber(dst, mode, alg, hash);
+        if (!result.matched) {
+            BufferedInputStream  in  = null;
+            BufferedOutputStream out = null;
+            try {
+                URLConnection u = open(url);
+                in = new BufferedInputStream(u.getInputStream());
+                out = new BufferedOutputStream(new FileOutputStream(result.file));
+                byte[] buf = new byte[65536];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                if (in !=null) in.close();
+                if (out!=null) out.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The content of a download as an {@link InputStream}.  Content up to the
+     * spill threshold is held in memory, and larger content in a temporary file
+     * that is deleted when the stream is closed.
+     */
+    public static class Body extends InputStream {
+        private InputStream in;
+        private long        length;
+        private File        file;
+        private Body (InputStream in, long length, File file) {
+            this.in     = in;
+            this.length = length;
+            this.file   = file;
+        }
+        /**
+         * Returns the number of bytes transferred.
+         * @return the content length
+         */
+        public long length() {
+            return length;
+        }
+        /**
+         * Returns the temporary {@link File} holding the content, or {@code null}
+         * if the content is held in memory.
+         * @return the spill {@link File} or {@code null}
+         */
+        public File file() {
+            return file;
+        }
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+        @Override
+        public long skip(long n) throws IOException {
+            return in.skip(n);
+        }
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                if (file!=null) file.delete();
+            }
+        }
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} whose buffer can be read in place.
+     */
+    private static class Spool extends ByteArrayOutputStream {
+        public Spool (int size) {
+            super(size);
+        }
+        public InputStream input() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * Downloads {@link URL} {@code src} into a {@link Body}, holding up to
+     * {@code threshold} bytes in memory and spilling larger content to a
+     * temporary file, so the heap used is bounded by the threshold.  Unlike
+     * {@link F#download(String)}, failures are thrown.
+     * @param src the {@link URL} to download
+     * @param threshold the largest content held in memory (at most {@code MAX_SPOOL})
+     * @return the {@link Body}, which the caller must close
+     * @throws IOException
+     */
+    public Body fetch(String src, long threshold) throws IOException {
+        threshold = Math.min(threshold, MAX_SPOOL);
+        InputStream  in    = null;
+        OutputStream out   = null;
+        File         file  = null;
+        long         total = 0;
+        try {
+            URLConnection u = open(new URL(src));
+            in = u.getInputStream();
+            long  expected = u.getContentLengthLong();
+            Spool spool    = null;
+            if (expected>threshold) {
+                // known to spill: don't spool at all
+                file = File.createTempFile("download", ".tmp");
+                out  = new BufferedOutputStream(new FileOutputStream(file));
+            } else {
+                spool = new Spool((int)Math.max(32, Math.min(threshold, expected<0 ? 65536 : expected)));
+                out   = spool;
+            }
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                if (file==null && total+n > threshold) {
+                    file = File.createTempFile("download", ".tmp");
+                    out = new BufferedOutputStream(new FileOutputStream(file));
+                    spool.writeTo(out);
+                    spool = null;
+                }
+                out.write(buf, 0, n);
+                total += n;
+            }
+            out.close();
+            out = null;
+            Body body = file==null ? new Body(spool.input(), total, null)
+                                   : new Body(new BufferedInputStream(new FileInputStream(file)), total, file);
+            file = null; // now owned by the body
+            return body;
+        } finally {
+            if (in !=null) try {in.close();} catch (IOException ignore) {}
+            if (out!=null) try {out.close();} catch (IOException ignore) {}
+            if (file!=null) file.delete();
+        }
+    }
+
+    private Clobbered cached(URL url, File dst, String alg, byte[] hash, ClobberMode mode) throws Exception {
+        if (hash!=null) {
+            Clobbered result = F.resolve(dst, mode, alg, hash, -1);
+            if (result.matched) {
+                return result;
+            }
+        }
+        for (;;) {
+            DownloadCache.Entry e = cache.fetch(this, url, alg==null ? "MD5" : alg);
+            if (hash!=null && !Arrays.equals(hash, e.hash)) {
+                throw new IOException("download hash mismatch");
+            }
+            Clobbered result = F.clobber(dst, mode, e.alg, e.hash, e.size);
+            if (result.matched || cache.serve(e, result.file)) {
+                result.hash = alg==null ? null : e.hash;
+                return result;
+            }
+            // replaced or evicted since it was fetched: fetch it again
+        }
+    }
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-\\d+/(?:\\d+|\\*)");
+
+    /**
+     * Returns the first byte position of a {@code Content-Range} header, or -1.
+     */
+    private static long rangeStart(URLConnection u) {
+        String range = u.getHeaderField("Content-Range");
+        if (range!=null) {
+            Matcher m = CONTENT_RANGE.matcher(range.trim());
+            if (m.matches()) {
+                return Long.parseLong(m.group(1));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a validator suitable for {@code If-Range}: a strong {@code ETag},
+     * or else {@code Last-Modified}, or {@code null}.
+     */
+    private static String validator(URLConnection u) {
+        String etag = u.getHeaderField("ETag");
+        if (etag!=null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return u.getHeaderField("Last-Modified");
+    }
+
+    private static void update(MessageDigest md, File f) throws IOException {
+        FileInputStream fis = null;
+        byte[]          buf = new byte[65536];
+        try {
+            fis = new FileInputStream(f);
+            int n;
+            while ((n = fis.read(buf)) >= 0) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            if (fis!=null) fis.close();
+        }
+    }
+
+    private Clobbered resumable(URL url, File dst, String alg, byte[] hash, ClobberMode mode) throws Exception {
+        Clobbered result = F.resolve(dst, mode, alg, hash, -1);
+        if (result.matched) {
+            return result;
+        }
+        File          part      = part(dst);
+        File          vfile     = validator(part);
+        MessageDigest md        = alg==null ? null : MessageDigest.getInstance(alg);
+        long          offset    = part.isFile() ? part.length() : 0;
+        String        validator = offset>0 && vfile.isFile() ? new String(F.read(vfile), StandardCharsets.UTF_8) : null;
+
+        URLConnection u = open(url);
+        boolean ranged = offset>0 && validator!=null && !validator.isEmpty() && u instanceof HttpURLConnection;
+        if (ranged) {
+            u.setRequestProperty("Range", "bytes="+offset+"-");
+            u.setRequestProperty("If-Range", validator);
+        }
+        InputStream  in  = null;
+        OutputStream out = null;
+        try {
+            if (u instanceof HttpURLConnection) {
+                int code = ((HttpURLConnection)u).getResponseCode();
+                if (ranged && (code==416 || code==HttpURLConnection.HTTP_PARTIAL && rangeStart(u)!=offset)) {
+                    // the part file can't be continued: start over
+                    ((HttpURLConnection)u).disconnect();
+                    part.delete();
+                    vfile.delete();
+                    return resumable(url, dst, alg, hash, mode);
+                } else if (code==HttpURLConnection.HTTP_PARTIAL && !ranged) {
+                    throw new IOException("download failed: unrequested partial content");
+                } else if (code!=HttpURLConnection.HTTP_PARTIAL && code!=HttpURLConnection.HTTP_OK) {
+                    throw new IOException("download failed: HTTP "+code+" "+((HttpURLConnection)u).getResponseMessage());
+                }
+                if (code==HttpURLConnection.HTTP_OK) {
+                    offset = 0;
+                }
+            } else {
+                offset = 0;
+            }
+            validator = validator(u);
+            if (validator!=null) {
+                Files.write(vfile.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+            } else {
+                vfile.delete();
+            }
+            if (offset>0 && md!=null) {
+                update(md, part);
+            }
+            in  = u.getInputStream();
+            out = new FileOutputStream(part, offset>0);
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+                if (md!=null) md.update(buf, 0, n);
+            }
+        } finally {
+            if (in !=null) in.close();
+            if (out!=null) out.close();
+        }
+        byte[] digest = md==null ? null : md.digest();
+        if (hash!=null && digest!=null && !Arrays.equals(hash, digest)) {
+            part.delete();
+            vfile.delete();
+            throw new IOException("download hash mismatch");
+        }
+        Files.move(part.toPath(), result.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        vfile.delete();
+        return new Clobbered(result.file, false, digest);
+    }
+
+    /**
+     * The result of probing a resource for a segmented download.
+     */
+    private static class Probe {
+        public long   length;
+        public String validator;
+        public Probe (long length, String validator) {
+            this.length    = length;
+            this.validator = validator;
+        }
+    }
+
+    /**
+     * Probes {@code url} with a {@code HEAD} request, returning a {@link Probe}
+     * if it supports byte ranges and is large enough to segment, or {@code null}.
+     */
+    private Probe probe(URL url) throws IOException {
+        URLConnection u = open(url);
+        if (!(u instanceof HttpURLConnection)) {
+            return null;
+        }
+        HttpURLConnection http = (HttpURLConnection)u;
+        try {
+            http.setRequestMethod("HEAD");
+            if (http.getResponseCode()!=HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            long   length = http.getContentLengthLong();
+            String ranges = http.getHeaderField("Accept-Ranges");
+            if (length<2*MIN_SEGMENT || ranges==null || !ranges.trim().equalsIgnoreCase("bytes")) {
+                return null;
+            }
+            return new Probe(length, validator(http));
+        } finally {
+            http.disconnect();
+        }
+    }
+
+    private void segment(URL url, Probe probe, FileChannel channel, long start, long end) throws IOException {
+        HttpURLConnection http = (HttpURLConnection)open(url);
+        http.setRequestProperty("Range", "bytes="+start+"-"+(end-1));
+        if (probe.validator!=null) {
+            http.setRequestProperty("If-Range", probe.validator);
+        }
+        InputStream in = null;
+        try {
+            int code = http.getResponseCode();
+            if (code!=HttpURLConnection.HTTP_PARTIAL || rangeStart(http)!=start) {
+                throw new IOException("segmented download failed: HTTP "+code+" for range "+start+"-"+(end-1));
+            }
+            in = http.getInputStream();
+            ByteBuffer buf = ByteBuffer.allocate(65536);
+            long position = start;
+            int n;
+            while (position<end && (n = in.read(buf.array(), 0, (int)Math.min(buf.capacity(), end-position))) >= 0) {
+                buf.limit(n);
+                while (buf.hasRemaining()) {
+                    position += channel.write(buf, position);
+                }
+                buf.clear();
+            }
+            if (position<end) {
+                throw new IOException("segmented download ended early at "+position+" for range "+start+"-"+(end-1));
+            }
+        } finally {
+            if (in!=null) in.close();
+        }
+    }
+
+    private Clobbered segmented(final URL url, File dst, String alg, byte[] hash, ClobberMode mode, final Probe probe) throws Exception {
+        Clobbered result = F.resolve(dst, mode, alg, hash, probe.length);
+        if (result.matched) {
+            return result;
+        }
+        File part = part(dst);
+        validator(part).delete();
+        long size = Math.max(MIN_SEGMENT, (probe.length+segments-1)/segments);
+        ExecutorService pool = Executors.newFixedThreadPool(segments);
+        RandomAccessFile raf = null;
+        boolean done = false;
+        try {
+            raf = new RandomAccessFile(part, "rw");
+            raf.setLength(probe.length);
+            final FileChannel channel = raf.getChannel();
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (long start=0; start<probe.length; start+=size) {
+                final long from = start;
+                final long to   = Math.min(start+size, probe.length);
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        segment(url, probe, channel, from, to);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                }
+            }
+            done = true;
+        } finally {
+            pool.shutdownNow();
+            if (raf!=null) raf.close();
+            if (!done) part.delete();
+        }
+        byte[] digest = alg==null ? null : F.hash(part, alg);
+        if (hash!=null && digest!=null && !Arrays.equals(hash, digest)) {
+            part.delete();
+            throw new IOException("download hash mismatch");
+        }
+        Files.move(part.toPath(), result.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Clobbered(result.file, false, digest);
+    }
+}
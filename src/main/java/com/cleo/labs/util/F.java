@@ -1,17 +1,36 @@
 package com.cleo.labs.util;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.cleo.labs.util.codec.Hex;
 
 public class F {
     /**
@@ -23,20 +42,89 @@ public class F {
      * </ul>
      */
     public enum ClobberMode {NONE, UNIQUE, OVERWRITE;}
+
+    /**
+     * The shared {@link Hasher} used for exact (single-stream) file hashes.
+     */
+    private static final Hasher HASHER = new Hasher();
+
+    /**
+     * The shared {@link Copier} used for zero-copy file copies.
+     */
+    private static final Copier COPIER = new Copier();
+
+    /**
+     * The {@link HashCache} consulted by {@link #hashMatches(File, String, byte[])}
+     * and {@link #hashOrNull(File, String)}, or {@code null} for none.
+     */
+    private static volatile HashCache cache = null;
+
+    /**
+     * Sets the {@link HashCache} used to avoid rehashing unchanged files when
+     * comparing hashes, or {@code null} to always read the file (the default).
+     * @param cache the {@link HashCache} or {@code null}
+     */
+    public static void cache(HashCache cache) {
+        F.cache = cache;
+    }
+    /**
+     * Returns the {@link HashCache} set with {@link #cache(HashCache)}.
+     * @return the {@link HashCache} or {@code null}
+     */
+    public static HashCache cache() {
+        return cache;
+    }
     
     /**
      * A "case" class describing a file clobbering result, including:
      * <ul>
      * <li>{@code file} the {@link File} that was created/written/matched</li>
      * <li>{@code matched} is {@code true} if the existing {@link File} matched hashes and was retained</li>
+     * <li>{@code hash} the hash of the content, if it was computed or known (otherwise {@code null})</li>
      * </ul>
      */
     public static class Clobbered {
         public File    file;
         public boolean matched;
+        public byte[]  hash;
         public Clobbered (File file, boolean matched) {
+            this(file, matched, null);
+        }
+        public Clobbered (File file, boolean matched, byte[] hash) {
             this.file    = file;
             this.matched = matched;
+            this.hash    = hash;
+        }
+    }
+
+    /**
+     * The expected hash of the content to be clobbered, either known up front or
+     * computed from a source {@link File} only when an existing file of the right
+     * size has to be compared.
+     */
+    private static class Expected {
+        private File    src;
+        private String  alg;
+        private byte[]  hash;
+        private boolean known;
+        public Expected (byte[] hash) {
+            this.hash  = hash;
+            this.known = true;
+        }
+        public Expected (File src, String alg) {
+            this.src   = src;
+            this.alg   = alg;
+            this.known = false;
+        }
+        public byte[] hash() {
+            if (!known) {
+                hash  = hashOrNull(src, alg);
+                known = true;
+            }
+            return hash;
+        }
+        public byte[] known() {
+            return known ? hash : null;
         }
     }
     /**
@@ -53,38 +141,122 @@ public class F {
      * @return a {@link Clobbered} result
      * @throws IOException
      */
-    private static Clobbered clobber(File dst, ClobberMode mode, String alg, byte[] hash) throws IOException {
+    static Clobbered clobber(File dst, ClobberMode mode, String alg, byte[] hash) throws IOException {
+        return clobber(dst, mode, alg, hash, -1);
+    }
+    /**
+     * Like {@link #clobber(File, ClobberMode, String, byte[])}, but if the expected
+     * {@code size} of the content is known, existing files of a different size are
+     * rejected without being hashed (and a lazily {@link Expected} hash is not
+     * computed at all).
+     * <p>
+     * In {@link ClobberMode#UNIQUE} mode the existing {@code dst[n]} variants are
+     * resolved from a single listing of the parent directory: only variants of the
+     * expected size are hashed (in index order), and if none matches the lowest
+     * free index is chosen.
+     * @param dst the intended destination {@link File}
+     * @param mode the {@link ClobberMode} policy
+     * @param alg the hash algorithm
+     * @param hash the hash value (may be {@code null})
+     * @param size the expected size of the content, or {@code -1} if unknown
+     * @return a {@link Clobbered} result
+     * @throws IOException
+     */
+    static Clobbered clobber(File dst, ClobberMode mode, String alg, byte[] hash, long size) throws IOException {
+        return clobber(dst, mode, alg, new Expected(hash), size, true);
+    }
+    /**
+     * Like {@link #clobber(File, ClobberMode, String, byte[], long)}, but the
+     * destination is only resolved: if an existing file was not matched, no new
+     * file is created.  This is intended for content that is staged elsewhere and
+     * moved into place once it is complete.
+     * @param dst the intended destination {@link File}
+     * @param mode the {@link ClobberMode} policy
+     * @param alg the hash algorithm
+     * @param hash the hash value (may be {@code null})
+     * @param size the expected size of the content, or {@code -1} if unknown
+     * @return a {@link Clobbered} result
+     * @throws IOException
+     */
+    static Clobbered resolve(File dst, ClobberMode mode, String alg, byte[] hash, long size) throws IOException {
+        return clobber(dst, mode, alg, new Expected(hash), size, false);
+    }
+    private static Clobbered clobber(File dst, ClobberMode mode, String alg, Expected hash, long size) throws IOException {
+        return clobber(dst, mode, alg, hash, size, true);
+    }
+    private static Clobbered clobber(File dst, ClobberMode mode, String alg, Expected hash, long size, boolean create) throws IOException {
         boolean matched = false;
         if (dst.exists()) {
-            if (hashMatches(dst, alg, hash)) {
+            if (sizeMatches(dst, size) && hashMatches(dst, alg, hash.hash())) {
                 matched = true;
             } else if (mode==ClobberMode.UNIQUE) {
-                for (int i=1;;i++) {
-                    File unique = new File(dst.getAbsolutePath()+"["+i+"]");
-                    if (unique.exists()) {
-                        if (hashMatches(unique, alg, hash)) {
-                            matched = true;
-                            break;
-                        }
-                    } else {
-                        dst = unique;
+                TreeMap<Integer,File> variants = variants(dst);
+                File unique = null;
+                for (File variant : variants.values()) {
+                    if (sizeMatches(variant, size) && hashMatches(variant, alg, hash.hash())) {
+                        unique  = variant;
+                        matched = true;
                         break;
                     }
                 }
+                if (unique==null) {
+                    int free = 1;
+                    for (int i : variants.keySet()) {
+                        if (i>free) break;
+                        free = i+1;
+                    }
+                    unique = variant(dst, free);
+                }
+                dst = unique;
             } else if (mode==ClobberMode.NONE) {
                 throw new IOException("copy destination already exists");
             }
         }
-        if (!dst.exists()) {
+        if (create && !dst.exists()) {
             dst.createNewFile();
         }
-        return new Clobbered(dst, matched);
+        return new Clobbered(dst, matched, hash.known());
+    }
+
+    private static boolean sizeMatches(File f, long size) {
+        return size<0 || f.length()==size;
+    }
+
+    private static File variant(File dst, int i) {
+        return new File(dst.getAbsolutePath()+"["+i+"]");
+    }
+
+    /**
+     * Lists the existing {@code dst[n]} variants of {@code dst}, indexed by {@code n}.
+     * @param dst the intended destination {@link File}
+     * @return the (possibly empty) variants
+     */
+    private static TreeMap<Integer,File> variants(File dst) {
+        TreeMap<Integer,File> variants = new TreeMap<Integer,File>();
+        File     parent = dst.getAbsoluteFile().getParentFile();
+        String   prefix = dst.getName()+"[";
+        String[] names  = parent==null ? null : parent.list();
+        if (names!=null) {
+            for (String name : names) {
+                if (name.length()>prefix.length()+1 && name.startsWith(prefix) && name.endsWith("]")) {
+                    String index = name.substring(prefix.length(), name.length()-1);
+                    try {
+                        int i = Integer.parseInt(index);
+                        if (i>0 && index.equals(String.valueOf(i))) {
+                            variants.put(i, variant(dst, i));
+                        }
+                    } catch (NumberFormatException ignore) {}
+                }
+            }
+        }
+        return variants;
     }
 
     /**
      * Conditionally copies {@link File} {@code src} to {@code dst} subject to the
      * {@link ClobberMode} clobbering policy and an MD5 hash comparison if {@code dst}
-     * already exists.
+     * already exists.  The source is only hashed if an existing file of the same
+     * size has to be compared, in which case the hash is returned in the result.
      * Note that {@code dst} may be a directory, in which case it is resolved by
      * appending {@code src.getName()}.
      * @param src the source file, which must exist and be a normal file
@@ -94,37 +266,153 @@ public class F {
      * @throws IOException
      */
     public static Clobbered copy(File src, File dst, ClobberMode mode) throws IOException {
-        if (!src.exists()) {
-            throw new IOException("copy source does not exist");
-        } else if (!src.isFile()) {
-            throw new IOException("copy source must be a normal file");
+        return copy(src, dst, mode, COPIER);
+    }
+
+    /**
+     * Conditionally copies {@link File} {@code src} to {@code dst} as for
+     * {@link #copy(File, File, ClobberMode)}, using {@link Copier} {@code copier}
+     * for the transfer.  If an earlier copy of the same (unchanged) {@code src}
+     * to {@code dst} (or for {@link ClobberMode#UNIQUE}, one of its {@code dst[n]}
+     * variants) was interrupted, it is resumed from its last checkpoint instead.
+     * @param src the source file, which must exist and be a normal file
+     * @param dst the intended destination file (or directory), which may or may not exist already
+     * @param mode the {@link ClobberMode} policy
+     * @param copier the {@link Copier} to use
+     * @return a {@link Clobbered} indicating the match status and actual destination file
+     * @throws IOException
+     */
+    public static Clobbered copy(File src, File dst, ClobberMode mode, Copier copier) throws IOException {
+        dst = copyable(src, dst);
+        File resume = resumable(src, dst, mode);
+        Clobbered result = resume!=null
+                         ? new Clobbered(resume, false)
+                         : clobber(dst, mode, "MD5", new Expected(src, "MD5"), src.length());
+        if (!result.matched) {
+            copier.copy(src, result.file);
         }
-        if (dst.isDirectory()) {
-            dst = new File(dst, src.getName());
+        return result;
+    }
+
+    /**
+     * Syncs the directory tree {@code src} into directory {@code dst} with a
+     * {@link Sync}, copying each file as for {@link #copy(File, File, ClobberMode)}
+     * unless its destination already has the same size and modification time.
+     * @param src the source directory
+     * @param dst the destination directory, which is created if needed
+     * @param mode the {@link ClobberMode} policy
+     * @return the {@link Sync.Report}
+     * @throws IOException if {@code src} is not a directory
+     */
+    public static Sync.Report sync(File src, File dst, ClobberMode mode) throws IOException {
+        return new Sync().mode(mode).sync(src, dst);
+    }
+
+    /**
+     * Updates {@link File} {@code dst} to the content of {@code src} with a
+     * {@link Delta} copy, writing only the ranges of {@code dst} that differ.
+     * @param src the source file
+     * @param dst the destination file, which is simply copied if it does not exist
+     * @return the {@link Delta.Result}
+     * @throws Exception
+     */
+    public static Delta.Result delta(File src, File dst) throws Exception {
+        return new Delta().copy(src, dst);
+    }
+
+    /**
+     * Finds an interrupted copy of {@code src} to {@code dst} (or one of its
+     * {@code dst[n]} variants in {@link ClobberMode#UNIQUE} mode) that can be
+     * resumed.
+     * @param src the source {@link File}
+     * @param dst the intended destination {@link File}
+     * @param mode the {@link ClobberMode} policy
+     * @return the {@link File} to resume, or {@code null}
+     */
+    private static File resumable(File src, File dst, ClobberMode mode) {
+        if (Copier.resumable(src, dst)>0) {
+            return dst;
+        } else if (mode==ClobberMode.UNIQUE && dst.exists()) {
+            for (File variant : variants(dst).values()) {
+                if (Copier.resumable(src, variant)>0) {
+                    return variant;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Conditionally copies {@link File} {@code src} to {@code dst} subject to the
+     * {@link ClobberMode} clobbering policy and an {@code alg} hash comparison if
+     * {@code dst} already exists, computing the hash of {@code src} in the same pass
+     * that writes {@code dst}.  Existing files are compared by size first, so the
+     * source is read only once unless an existing file of the same size has to be
+     * compared by hash.  The hash of {@code src} is always returned in the result.
+     * Note that {@code dst} may be a directory, in which case it is resolved by
+     * appending {@code src.getName()}.
+     * @param src the source file, which must exist and be a normal file
+     * @param dst the intended destination file (or directory), which may or may not exist already
+     * @param mode the {@link ClobberMode} policy
+     * @param alg the hash algorithm
+     * @return a {@link Clobbered} indicating the match status, actual destination file and source hash
+     * @throws IOException
+     */
+    public static Clobbered copy(File src, File dst, ClobberMode mode, String alg) throws IOException {
+        dst = copyable(src, dst);
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(alg);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
         }
-        Clobbered result = clobber(dst, mode, "MD5", hashOrNull(src, "MD5"));
+        Clobbered result = clobber(dst, mode, alg, new Expected(src, alg), src.length());
         if (!result.matched) {
             FileInputStream fis = null;
             FileOutputStream fos = null;
-            FileChannel schannel = null;
-            FileChannel dchannel = null;
-    
             try {
                 fis = new FileInputStream(src);
-                schannel = fis.getChannel();
-                fos = new FileOutputStream(dst);
-                dchannel = fos.getChannel();
-                dchannel.transferFrom(schannel, 0, schannel.size());
+                fos = new FileOutputStream(result.file);
+                FileChannel schannel = fis.getChannel();
+                FileChannel dchannel = fos.getChannel();
+                ByteBuffer  buf      = ByteBuffer.allocate(1024*1024);
+                while (schannel.read(buf) >= 0) {
+                    md.update(buf.array(), 0, buf.position());
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        dchannel.write(buf);
+                    }
+                    buf.clear();
+                }
             } finally {
                 if (fis != null) fis.close();
-                if (schannel != null) schannel.close();
                 if (fos != null) fos.close();
-                if (dchannel != null) dchannel.close();
             }
+            result.hash = md.digest();
         }
         return result;
     }
 
+    /**
+     * Validates copy source {@code src} and resolves destination {@code dst},
+     * appending {@code src.getName()} if it is a directory.
+     * @param src the source file, which must exist and be a normal file
+     * @param dst the intended destination file (or directory)
+     * @return the destination file
+     * @throws IOException if {@code src} is not a normal file
+     */
+    static File copyable(File src, File dst) throws IOException {
+        if (!src.exists()) {
+            throw new IOException("copy source does not exist");
+        } else if (!src.isFile()) {
+            throw new IOException("copy source must be a normal file");
+        }
+        if (dst.isDirectory()) {
+            dst = new File(dst, src.getName());
+        }
+        return dst;
+    }
+
     /**
      * Conditionally downloads {@link URL} {@code src} to {@code dst} subject to the
      * {@link ClobberMode} clobbering policy and a hash comparison if {@code dst}
@@ -140,34 +428,7 @@ public class F {
      * @throws Exception
      */
     public static Clobbered download(String src, File dst, String alg, byte[] hash, ClobberMode mode) throws Exception {
-        URL url = new URL(src);
-        if (dst.isDirectory()) {
-            // figure out the intended name
-            String[] names = url.getPath().split("/"); // trailing / is ignored by split
-            String name = names.length>0 ? names[names.length-1] : url.getHost();
-            dst = new File(dst, name);
-        }
-        Clobbered result = clobber(dst, mode, alg, hash);
-        if (!result.matched) {
-            BufferedInputStream  in  = null;
-            BufferedOutputStream out = null;
-            try {
-                URLConnection u = new URL(src).openConnection();
-                u.setRequestProperty("User-Agent", "curl/7.37.1");
-                u.setUseCaches(false);
-                in = new BufferedInputStream(u.getInputStream());
-                out = new BufferedOutputStream(new FileOutputStream(result.file));
-                byte[] buf = new byte[65536];
-                int n;
-                while ((n = in.read(buf)) >= 0) {
-                    out.write(buf, 0, n);
-                }
-            } finally {
-                if (in !=null) in.close();
-                if (out!=null) out.close();
-            }
-        }
-        return result;
+        return new Downloader().download(src, dst, alg, hash, mode);
     }
 
     /**
@@ -199,6 +460,19 @@ public class F {
         return null;
     }
 
+    /**
+     * Downloads {@link URL} {@code src} as a stream, holding up to {@code threshold}
+     * bytes in memory and spilling larger content to a temporary file.
+     * Throws an Exception in case of error.
+     * @param src the {@link URL} to download
+     * @param threshold the largest content held in memory
+     * @return the content as a {@link Downloader.Body}, which the caller must close
+     * @throws IOException
+     */
+    public static Downloader.Body download(String src, long threshold) throws IOException {
+        return new Downloader().fetch(src, threshold);
+    }
+
     /**
      * Reads {@link File} named {@code f} and returns the contents as a {@code byte[]}.
      * Throws an Exception in case of error.
@@ -211,21 +485,130 @@ public class F {
     }
     /**
      * Reads {@link File} {@code f} and returns the contents as a {@code byte[]}.
-     * Throws an Exception in case of error.
+     * Throws an Exception in case of error, including if the file is too large
+     * for a {@code byte[]} (use {@link #buffers(File)} for those).
      * @param f the {@link File} to read
      * @return the file content
      * @throws IOException
      */
     public static byte[] read(File f) throws IOException {
-        byte buf[] = new byte[(int)f.length()];
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(f);
-            fis.read(buf);
+            long size = fis.getChannel().size();
+            if (size>MAX_ARRAY) {
+                throw new IOException("file too large to read into memory: "+f);
+            }
+            byte buf[] = new byte[(int)size];
+            int  off   = 0;
+            int  n;
+            while (off<buf.length && (n = fis.read(buf, off, buf.length-off)) >= 0) {
+                off += n;
+            }
+            return off<buf.length ? Arrays.copyOf(buf, off) : buf;
+        } finally {
+            if (fis!=null) fis.close();
+        }
+    }
+
+    /**
+     * The largest {@code byte[]} the JVM reliably allocates.
+     */
+    private static final long MAX_ARRAY = Integer.MAX_VALUE-8;
+    /**
+     * Files up to this size are read into the heap rather than mapped.
+     */
+    public static final int MAP_THRESHOLD = 64*1024;
+
+    /**
+     * Returns the contents of {@link File} {@code f} as a read-only {@link ByteBuffer}.
+     * Small files are read into a heap buffer, and larger ones are memory-mapped.
+     * Throws an Exception in case of error, including if the file is too large
+     * to map as a single buffer (use {@link #buffers(File)} for those).
+     * @param f the {@link File} to read
+     * @return the file content
+     * @throws IOException
+     */
+    public static ByteBuffer buffer(File f) throws IOException {
+        if (f.length()<=MAP_THRESHOLD) {
+            return ByteBuffer.wrap(read(f)).asReadOnlyBuffer();
+        }
+        ByteBuffer[] buffers = buffers(f, Integer.MAX_VALUE);
+        if (buffers.length>1) {
+            throw new IOException("file too large to map as a single buffer: "+f);
+        }
+        return buffers[0];
+    }
+
+    /**
+     * Returns the contents of {@link File} {@code f} as a segmented view of
+     * read-only memory-mapped {@link ByteBuffer}s of up to 1 GB each, so
+     * files of any size can be read without copying.
+     * @param f the {@link File} to read
+     * @return the file content segments (one empty buffer for an empty file)
+     * @throws IOException
+     */
+    public static ByteBuffer[] buffers(File f) throws IOException {
+        return buffers(f, 1024*1024*1024);
+    }
+    /**
+     * Returns the contents of {@link File} {@code f} as a segmented view of
+     * read-only memory-mapped {@link ByteBuffer}s of up to {@code segment} bytes each.
+     * @param f the {@link File} to read
+     * @param segment the maximum segment size
+     * @return the file content segments (one empty buffer for an empty file)
+     * @throws IOException
+     */
+    public static ByteBuffer[] buffers(File f, int segment) throws IOException {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            int  n    = (int)Math.max(1, (size+segment-1)/segment);
+            ByteBuffer[] buffers = new ByteBuffer[n];
+            for (int i=0; i<n; i++) {
+                long position = (long)i*segment;
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segment, size-position));
+            }
+            return buffers;
         } finally {
             if (fis!=null) fis.close();
         }
-        return buf;
+    }
+
+    /**
+     * Returns an {@link InputStream} reading the remaining content of {@code buffer},
+     * without copying it (the position of {@code buffer} itself is not changed).
+     * @param buffer the {@link ByteBuffer} to read
+     * @return the {@link InputStream}
+     */
+    public static InputStream stream(ByteBuffer buffer) {
+        final ByteBuffer b = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return b.hasRemaining() ? b.get()&0xff : -1;
+            }
+            @Override
+            public int read(byte[] buf, int off, int len) {
+                if (len==0) return 0;
+                if (!b.hasRemaining()) return -1;
+                len = Math.min(len, b.remaining());
+                b.get(buf, off, len);
+                return len;
+            }
+            @Override
+            public long skip(long n) {
+                n = Math.max(0, Math.min(n, b.remaining()));
+                b.position(b.position()+(int)n);
+                return n;
+            }
+            @Override
+            public int available() {
+                return b.remaining();
+            }
+        };
     }
 
     /**
@@ -241,21 +624,197 @@ public class F {
     }
     /**
      * Writes {@link String} {@code content} to {@link File} {@code f}, subject to
-     * the overwrite {@link ClobberMode} policy {@code mode}.
+     * the overwrite {@link ClobberMode} policy {@code mode}, in the platform
+     * default charset.  The content is written atomically as for
+     * {@link #write(CharSequence, File, ClobberMode, Charset, boolean)}.
      * @param content the content {@link String}
      * @param f the destination {@link File}
      * @param mode the overwrite policy
      * @throws IOException if something goes wrong
      */
     public static void write(String content, File f, ClobberMode mode) throws IOException {
-        f = clobber(f, mode, null, null).file;
+        write(content, f, mode, Charset.defaultCharset(), false);
+    }
+    /**
+     * Writes {@link CharSequence} {@code content} to {@link File} {@code f}, subject
+     * to the overwrite {@link ClobberMode} policy {@code mode}, encoded in charset
+     * {@code cs}.  The content is encoded incrementally into a temporary file in the
+     * same directory, which is then moved into place atomically, so that readers
+     * never see an empty or partial file.  Except in {@link ClobberMode#OVERWRITE}
+     * mode the move never replaces a file created by a concurrent writer: under
+     * {@link ClobberMode#NONE} that is an error, and under {@link ClobberMode#UNIQUE}
+     * the next free variant is resolved.  If {@code sync} is {@code true} the
+     * content is forced to disk before the move, and the directory after it.
+     * @param content the content
+     * @param f the destination {@link File}
+     * @param mode the overwrite policy
+     * @param cs the {@link Charset}
+     * @param sync {@code true} to force the content to disk
+     * @return the {@link File} written, which may differ from {@code f} in {@link ClobberMode#UNIQUE} mode
+     * @throws IOException if something goes wrong
+     */
+    public static File write(CharSequence content, File f, ClobberMode mode, Charset cs, boolean sync) throws IOException {
+        return write(CharBuffer.wrap(content), null, f, mode, cs, sync);
+    }
+    /**
+     * Writes the content read from {@link Reader} {@code content} to {@link File}
+     * {@code f} as for {@link #write(CharSequence, File, ClobberMode, Charset, boolean)},
+     * without holding more than a buffer of it in memory.  The {@link Reader} is
+     * read to the end but not closed.
+     * @param content the content {@link Reader}
+     * @param f the destination {@link File}
+     * @param mode the overwrite policy
+     * @param cs the {@link Charset}
+     * @param sync {@code true} to force the content to disk
+     * @return the {@link File} written, which may differ from {@code f} in {@link ClobberMode#UNIQUE} mode
+     * @throws IOException if something goes wrong
+     */
+    public static File write(Reader content, File f, ClobberMode mode, Charset cs, boolean sync) throws IOException {
+        return write(null, content, f, mode, cs, sync);
+    }
+
+    /**
+     * Per-thread {@link CharsetEncoder} and buffers, reused across writes.
+     */
+    private static class Encoder {
+        private CharsetEncoder encoder;
+        private CharBuffer     chars = CharBuffer.allocate(8192);
+        private ByteBuffer     bytes = ByteBuffer.allocate(65536);
+        public CharsetEncoder encoder(Charset cs) {
+            if (encoder==null || !encoder.charset().equals(cs)) {
+                encoder = cs.newEncoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE)
+                            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            return encoder.reset();
+        }
+    }
+    private static final ThreadLocal<Encoder> ENCODER = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private static File write(CharBuffer content, Reader reader, File f, ClobberMode mode, Charset cs, boolean sync) throws IOException {
+        File dst = resolve(f, mode, null, null, -1).file.getAbsoluteFile();
+        File tmp = temp(dst);
         FileOutputStream fos = null;
         try {
-            fos = new FileOutputStream(f);
-            fos.write(content.getBytes());
+            fos = new FileOutputStream(tmp);
+            FileChannel    channel = fos.getChannel();
+            Encoder        e       = ENCODER.get();
+            CharsetEncoder encoder = e.encoder(cs);
+            ByteBuffer     bytes   = e.bytes;
+            bytes.clear();
+            if (content!=null) {
+                encode(encoder, content, bytes, channel, true);
+            } else {
+                CharBuffer chars = e.chars;
+                chars.clear();
+                while (reader.read(chars) >= 0) {
+                    chars.flip();
+                    encode(encoder, chars, bytes, channel, false);
+                    chars.compact();
+                }
+                chars.flip();
+                encode(encoder, chars, bytes, channel, true);
+            }
+            while (encoder.flush(bytes).isOverflow()) {
+                drain(bytes, channel);
+            }
+            drain(bytes, channel);
+            if (sync) {
+                channel.force(true);
+            }
+            fos.close();
+            fos = null;
+            dst = publish(tmp, dst, f, mode);
         } finally {
-           if (fos!=null) fos.close();
+            if (fos!=null) try {fos.close();} catch (IOException ignore) {}
+            tmp.delete();
+        }
+        if (sync) {
+            FileChannel dir = null;
+            try {
+                dir = FileChannel.open(dst.getParentFile().toPath(), StandardOpenOption.READ);
+                dir.force(true);
+            } catch (IOException ignore) {
+                // not every platform can sync a directory
+            } finally {
+                if (dir!=null) dir.close();
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Moves the complete {@code tmp} file into place as {@code dst}, resolved
+     * from {@code f}.  Except under {@link ClobberMode#OVERWRITE} an existing
+     * file is never replaced: {@code dst} is resolved again, which fails under
+     * {@link ClobberMode#NONE} and picks another variant under {@link ClobberMode#UNIQUE}.
+     * @return the {@link File} written
+     */
+    private static File publish(File tmp, File dst, File f, ClobberMode mode) throws IOException {
+        if (mode==ClobberMode.OVERWRITE) {
+            Files.move(tmp.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return dst;
+        }
+        while (true) {
+            try {
+                // a rename (even ATOMIC_MOVE) may replace the target, but a link never does
+                try {
+                    Files.createLink(dst.toPath(), tmp.toPath());
+                } catch (FileAlreadyExistsException e) {
+                    throw e;
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    Files.move(tmp.toPath(), dst.toPath());
+                }
+                return dst;
+            } catch (FileAlreadyExistsException e) {
+                dst = resolve(f, mode, null, null, -1).file.getAbsoluteFile();
+            }
+        }
+    }
+
+    private static void encode(CharsetEncoder encoder, CharBuffer in, ByteBuffer out, FileChannel channel, boolean end) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(in, out, end);
+            if (result.isOverflow()) {
+                drain(out, channel);
+            } else if (result.isUnderflow()) {
+                return;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    private static void drain(ByteBuffer buf, FileChannel channel) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
         }
+        buf.clear();
+    }
+
+    /**
+     * Creates a new hidden temporary file alongside {@code dst}.  Unlike
+     * {@link File#createTempFile(String, String, File)} the file is created
+     * with the default permissions, which it keeps when moved into place.
+     * @param dst the destination {@link File}
+     * @return the new empty temporary {@link File}
+     * @throws IOException if the file can not be created
+     */
+    private static File temp(File dst) throws IOException {
+        for (int i=0; i<100; i++) {
+            File tmp = new File(dst.getParentFile(),
+                                "."+dst.getName()+"."+Long.toHexString(ThreadLocalRandom.current().nextLong()&Long.MAX_VALUE)+".tmp");
+            if (tmp.createNewFile()) {
+                return tmp;
+            }
+        }
+        throw new IOException("can not create temporary file for "+dst);
     }
 
     /**
@@ -285,19 +844,42 @@ public class F {
      * @throws Exception in case of error
      */
     public static byte[] hash(File f, String alg) throws Exception {
-        MessageDigest   md  = MessageDigest.getInstance(alg);
-        FileInputStream fis = null;
-        byte[]          buf = new byte[65536];
-        try {
-            fis = new FileInputStream(f);
-            int n;
-            while ((n = fis.read(buf)) >= 0) {
-                md.update(buf, 0, n);
-            }
-        } finally {
-            if (fis!=null) fis.close();
-        }
-        return md.digest();
+        return HASHER.hash(f, alg).hash;
+    }
+    /**
+     * Returns the hash of the contents of {@link File} {code f}
+     * using the indicated algorithm and {@link Hasher}, including the
+     * throughput statistics for the file.
+     * @param f the {@code File} to read
+     * @param alg the hash algorithm to use
+     * @param hasher the {@link Hasher} to use
+     * @return the {@link Hasher.Result}
+     * @throws Exception in case of error
+     */
+    public static Hasher.Result hash(File f, String alg, Hasher hasher) throws Exception {
+        return hasher.hash(f, alg);
+    }
+    /**
+     * Returns the hashes of the contents of {@link File} {@code f} using
+     * each of the indicated algorithms, reading the file only once.
+     * @param f the {@code File} to read
+     * @param algs the hash algorithms to use
+     * @return the hashes, indexed by algorithm name ignoring case
+     * @throws Exception in case of error
+     */
+    public static Map<String,byte[]> hashes(File f, String...algs) throws Exception {
+        return HASHER.hash(f, algs).hashes;
+    }
+    /**
+     * Returns the hashes of the contents of {@link File} {@code f} using
+     * each of the indicated algorithms, reading the file only once.
+     * @param f the {@code File} to read
+     * @param algs the hash algorithms to use
+     * @return the hashes, indexed by algorithm name ignoring case
+     * @throws Exception in case of error
+     */
+    public static Map<String,byte[]> hashes(File f, Collection<String> algs) throws Exception {
+        return HASHER.hash(f, algs).hashes;
     }
     /**
      * Return {@code true} if the hash of the contents of {@link File} {@code f}
@@ -309,11 +891,24 @@ public class F {
      * @return {@code true} if the hash matches
      */
     public static boolean hashMatches(File f, String alg, byte[] hash) {
+        return hashMatches(f, null, alg, hash);
+    }
+    /**
+     * Return {@code true} if the hash of the contents of {@link File} {@code f}
+     * matches {@code hash} using algorithm {@code alg}, reusing the hash from
+     * {@code hashes} (as returned by {@link #hashes(File, String...)}) if it is
+     * already known.  Returns {@code} false otherwise, including if any
+     * Exceptions occur during the process.
+     * @param f the {@link File} to read
+     * @param hashes the known hashes of {@code f} (may be {@code null})
+     * @param alg the hash algorithm to use
+     * @param hash the expected hash value
+     * @return {@code true} if the hash matches
+     */
+    public static boolean hashMatches(File f, Map<String,byte[]> hashes, String alg, byte[] hash) {
         if (f!=null && alg!=null && hash!=null && hash.length>0) {
-            try {
-                byte[] fhash = hash(f, alg);
-                return Arrays.equals(fhash, hash);
-            } catch (Exception ignore) {}
+            byte[] fhash = hashOrNull(f, hashes, alg);
+            return fhash!=null && Arrays.equals(fhash, hash);
         }
         return false;
     }
@@ -325,8 +920,30 @@ public class F {
      * @return the hash value or {@code null}
      */
     public static byte[] hashOrNull(File f, String alg) {
+        return hashOrNull(f, null, alg);
+    }
+    /**
+     * Returns the hash of {@link File} {@code f} using algorithm {@code alg},
+     * reusing the hash from {@code hashes} (as returned by {@link #hashes(File, String...)})
+     * if it is already known, or null if any error or Exception occurs.
+     * Otherwise the hash is looked up in the {@link HashCache}, if one is set,
+     * or computed.  A newly computed hash is added to {@code hashes}.
+     * @param f the {@link File} to read
+     * @param hashes the known hashes of {@code f} (may be {@code null})
+     * @param alg the hash algorithm to use
+     * @return the hash value or {@code null}
+     */
+    public static byte[] hashOrNull(File f, Map<String,byte[]> hashes, String alg) {
+        if (hashes!=null && hashes.containsKey(alg)) {
+            return hashes.get(alg);
+        }
         try {
-            return hash(f, alg);
+            HashCache cache = F.cache;
+            byte[] hash = cache!=null ? cache.hash(f, alg) : hash(f, alg);
+            if (hashes!=null) {
+                hashes.put(alg, hash);
+            }
+            return hash;
         } catch (Exception ignore) {}
         return null;
     }
@@ -334,49 +951,28 @@ public class F {
     /**
      * Formats a {@code byte[]} array as a hexadecimal {@link String}.
      * @param bytes the {@code byte[]}s to format
-     * @return the formatted {@link String}, or {@code null} if {@code bytess} is {@code null}
+     * @return the formatted {@link String}, or {@code null} if {@code bytes} is {@code null}
+     * @see Hex#encode(byte[])
      */
     public static String hex(byte[] bytes) {
-        if (bytes==null) return null;
-        StringBuilder s = new StringBuilder(2 * bytes.length);
-        for (byte b : bytes) {
-            s.append(String.format("%02x", b));
-        }
-        return s.toString();
-    }
-    private static int[] HEX = new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // 00-0F
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // 10-1F
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // 20-2F
-                                           0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 0, 0, 0, 0, 0, 0, // 30-3F
-                                           0,10,11,12,13,14,15, 0, 0, 0, 0, 0, 0, 0, 0, 0, // 40-4F
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // 50-5F
-                                           0,10,11,12,13,14,15, 0, 0, 0, 0, 0, 0, 0, 0, 0, // 60-6F
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // 70-7F
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // 80-8F
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // 90-9F
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // A0-AF
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // B0-BF
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // C0-CF
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // D0-DF
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, // E0-EF
-                                           0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};// F0-FF
+        return bytes==null ? null : Hex.encode(bytes);
+    }
     /**
      * Converts a hexadecimal {@link String} into a binary {@code byte[]} array.  If the
-     * string is not of even length or is not 100% hexadecimal (or is {@code null},
+     * string is not of even length or is not 100% hexadecimal (or is {@code null}),
      * returns {@code null}.  Both upper and lower case A-F are accepted.
      * @param s the {@link String} to convert
      * @return the converted {@code byte[]}, or {@code null}
+     * @see Hex#decode(CharSequence)
      */
     public static byte[] hex(String s) {
-        if (s==null || s.length() % 2 != 0 || s.contains("[^0-9a-fA-F]")) {
+        if (s==null) {
+            return null;
+        }
+        try {
+            return Hex.decode(s);
+        } catch (IllegalArgumentException e) {
             return null;
-        } else {
-            byte[] source = s.getBytes();
-            byte[] result = new byte[s.length() / 2];
-            for (int i=0; i<result.length; i++) {
-                result[i] = (byte)((HEX[source[2*i]]<<4)+HEX[source[2*i+1]]);
-            }
-            return result;
         }
     }
 }
@@ -0,0 +1,327 @@
+package com.cleo.labs.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of file hashes keyed by path and algorithm, where each entry is
+ * valid only as long as the size, modification time and file key (inode)
+ * of the file are unchanged.  Entries are kept in a bounded in-memory LRU
+ * and optionally journaled to an index file, so that they survive restarts.
+ * The index is appended to as hashes are computed, replayed when the cache
+ * is constructed, and rewritten from memory by {@link #compact()}, which
+ * happens automatically once the journal grows to {@code COMPACT} times the
+ * number of entries in memory.  The journal is kept open between appends
+ * until {@link #close()}.
+ * <p>
+ * Files modified within the last {@code RACY} milliseconds are hashed but not
+ * cached, since a further change could go unnoticed within the resolution of
+ * the file system timestamp.
+ */
+public class HashCache implements Closeable {
+    public static final int  DEFAULT_CAPACITY = 10000;
+    public static final long RACY             = 2000;
+    public static final int  COMPACT          = 4;
+    public static final int  COMPACT_MIN      = 1024;
+
+    /**
+     * A "case" class describing a cached hash, including the attributes of
+     * the file at the time it was hashed.
+     */
+    public static class Entry {
+        public String path;
+        public String alg;
+        public long   size;
+        public long   mtime;
+        public String inode;
+        public byte[] hash;
+        public Entry (String path, String alg, long size, long mtime, String inode, byte[] hash) {
+            this.path  = path;
+            this.alg   = alg;
+            this.size  = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.hash  = hash;
+        }
+        /**
+         * Returns {@code true} if the entry still describes a file with
+         * attributes {@code attrs}.
+         * @param attrs the current file attributes
+         * @return {@code true} if the entry is still valid
+         */
+        public boolean valid(BasicFileAttributes attrs) {
+            return size==attrs.size() && mtime==mtime(attrs) && S.equal(inode, inode(attrs));
+        }
+        public String toString() {
+            return alg+"\t"+size+"\t"+mtime+"\t"+S.s(inode, "-")+"\t"+F.hex(hash)+"\t"+path;
+        }
+        public static Entry parse(String line) {
+            String[] fields = line.split("\t", 6);
+            if (fields.length<6) return null;
+            try {
+                byte[] hash = F.hex(fields[4]);
+                if (hash==null) return null;
+                return new Entry(fields[5], fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                 fields[3].equals("-") ? null : fields[3], hash);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private static long mtime(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    private static String inode(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key==null ? null : key.toString();
+    }
+
+    private static String key(String path, String alg) {
+        return alg.toUpperCase()+"\t"+path;
+    }
+
+    private LinkedHashMap<String,Entry> lru;
+    private File                        index;
+    private Writer                      journal   = null;
+    private long                        journaled = 0; // lines in the index
+
+    public HashCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public HashCache(int capacity) {
+        final int max = capacity;
+        this.lru = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,HashCache.Entry> eldest) {
+                return size()>max;
+            }
+        };
+        this.index = null;
+    }
+
+    /**
+     * Creates a cache of at most {@code capacity} entries, journaled to
+     * {@link File} {@code index}, loading any existing entries from it.
+     * @param capacity the maximum number of entries kept in memory
+     * @param index the index {@link File} (need not exist yet)
+     * @throws IOException if the index exists but can not be read
+     */
+    public HashCache(int capacity, File index) throws IOException {
+        this(capacity);
+        this.index = index;
+        if (index.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    journaled++;
+                    Entry e = Entry.parse(line);
+                    if (e!=null) {
+                        lru.put(key(e.path, e.alg), e);
+                    }
+                }
+            } finally {
+                if (reader!=null) reader.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the cached hash of {@link File} {@code f} for algorithm {@code alg},
+     * or {@code null} if there is no valid entry.  Stale entries are removed.
+     * @param f the {@link File}
+     * @param alg the hash algorithm
+     * @return the cached hash or {@code null}
+     */
+    public byte[] get(File f, String alg) {
+        try {
+            return get(f, Files.readAttributes(f.toPath(), BasicFileAttributes.class), alg);
+        } catch (IOException e) {
+            invalidate(f);
+            return null;
+        }
+    }
+
+    private synchronized byte[] get(File f, BasicFileAttributes attrs, String alg) {
+        String key = key(f.getAbsolutePath(), alg);
+        Entry  e   = lru.get(key);
+        if (e!=null && !e.valid(attrs)) {
+            lru.remove(key);
+            e = null;
+        }
+        return e==null ? null : e.hash;
+    }
+
+    /**
+     * Records {@code hash} for {@link File} {@code f} as it was described by
+     * {@code attrs}, which should be read before the file was hashed.
+     * @param f the {@link File}
+     * @param attrs the attributes of {@code f} before it was hashed
+     * @param alg the hash algorithm
+     * @param hash the hash value
+     */
+    public void put(File f, BasicFileAttributes attrs, String alg, byte[] hash) {
+        if (System.currentTimeMillis()-attrs.lastModifiedTime().toMillis() < RACY) {
+            return;
+        }
+        Entry e = new Entry(f.getAbsolutePath(), alg, attrs.size(), mtime(attrs), inode(attrs), hash);
+        synchronized (this) {
+            lru.put(key(e.path, e.alg), e);
+            if (index!=null) {
+                try {
+                    journal(e);
+                    if (journaled>=Math.max(COMPACT_MIN, (long)COMPACT*lru.size())) {
+                        compact();
+                    }
+                } catch (IOException ignore) {
+                    // the index is only an optimization
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the hash of {@link File} {@code f} for algorithm {@code alg},
+     * from the cache if there is a valid entry, or by hashing (and caching) it.
+     * @param f the {@link File}
+     * @param alg the hash algorithm
+     * @return the hash
+     * @throws Exception in case of error
+     */
+    public byte[] hash(File f, String alg) throws Exception {
+        BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        byte[] hash = get(f, attrs, alg);
+        if (hash==null) {
+            hash = F.hash(f, alg);
+            put(f, attrs, alg, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the hashes of {@link File} {@code f} for each of the algorithms,
+     * reading the file once for any algorithms not already validly cached.
+     * @param f the {@link File}
+     * @param algs the hash algorithms
+     * @return the hashes, indexed by algorithm ignoring case
+     * @throws Exception in case of error
+     */
+    public Map<String,byte[]> hashes(File f, String...algs) throws Exception {
+        BasicFileAttributes attrs   = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        Map<String,byte[]>  result  = new TreeMap<String,byte[]>(String.CASE_INSENSITIVE_ORDER);
+        List<String>        missing = new ArrayList<String>();
+        for (String alg : algs) {
+            byte[] hash = get(f, attrs, alg);
+            if (hash==null) {
+                missing.add(alg);
+            } else {
+                result.put(alg, hash);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (Map.Entry<String,byte[]> e : F.hashes(f, missing).entrySet()) {
+                put(f, attrs, e.getKey(), e.getValue());
+                result.put(e.getKey(), e.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes all entries for {@link File} {@code f}.
+     * @param f the {@link File}
+     */
+    public synchronized void invalidate(File f) {
+        String path = f.getAbsolutePath();
+        for (Iterator<Entry> i=lru.values().iterator(); i.hasNext();) {
+            if (i.next().path.equals(path)) {
+                i.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        lru.clear();
+    }
+
+    public synchronized int size() {
+        return lru.size();
+    }
+
+    private void journal(Entry e) throws IOException {
+        if (journal==null) {
+            journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(index, true), StandardCharsets.UTF_8));
+        }
+        try {
+            journal.write(e.toString());
+            journal.write('\n');
+            journal.flush();
+            journaled++;
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Closes the journal, if open.  A later {@code put} reopens it.
+     */
+    @Override
+    public synchronized void close() {
+        if (journal!=null) {
+            try {
+                journal.close();
+            } catch (IOException ignore) {
+                // appends were already flushed
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Rewrites the index with the current in-memory entries, least recently
+     * used first, dropping stale and evicted entries from the journal.
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        if (index==null) return;
+        close();
+        File tmp = new File(index.getAbsolutePath()+".tmp");
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+            for (Entry e : lru.values()) {
+                out.write(e.toString());
+                out.write('\n');
+            }
+        } finally {
+            if (out!=null) out.close();
+        }
+        Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journaled = lru.size();
+    }
+}
@@ -0,0 +1,405 @@
+package com.cleo.labs.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A hashing engine for large files.  Files smaller than the {@code threshold}
+ * are hashed on the calling thread with a simple buffered read.  Larger files
+ * are split into regions of {@code chunk} bytes and hashed in one of two ways:
+ * <ul>
+ * <li>{@code STREAM} produces the exact digest of the file content (identical
+ *     to {@link MessageDigest} over the whole file), reading the next regions
+ *     on the pool while the current region is digested.</li>
+ * <li>{@code TREE} digests each region independently on the fork-join pool and
+ *     returns the digest of the concatenated region digests.  This is not
+ *     interchangeable with a plain digest and depends on {@code chunk}.</li>
+ * </ul>
+ * By default the regions are read with positional {@link FileChannel} reads
+ * (in {@code STREAM} mode, in steps of at most {@code READ} bytes).  With
+ * {@code mapped(true)} they are memory-mapped instead, which avoids a copy
+ * but keeps the file locked on Windows until the mapping is garbage collected,
+ * so a mapped file can not be deleted or overwritten right after it is hashed.
+ * <p>
+ * A {@code Hasher} is configured with its fluent setters and may then be shared
+ * between threads.
+ */
+public class Hasher {
+    /**
+     * Describes the hashing strategy for large files.
+     * <ul>
+     * <li>{@code STREAM} computes the exact single-stream digest with I/O pipelined ahead of the digest.</li>
+     * <li>{@code TREE} computes a two-level tree digest over {@code chunk} sized regions in parallel.</li>
+     * </ul>
+     */
+    public enum Mode {STREAM, TREE;}
+
+    /**
+     * A "case" class describing a hashing result, including:
+     * <ul>
+     * <li>{@code hash} the digest (for the first algorithm, if several were requested)</li>
+     * <li>{@code alg} the algorithm used (the first algorithm, if several were requested)</li>
+     * <li>{@code hashes} the digests indexed by algorithm name, ignoring case</li>
+     * <li>{@code mode} the {@link Mode} used (small files are always {@code STREAM})</li>
+     * <li>{@code bytes} the number of bytes hashed</li>
+     * <li>{@code nanos} the elapsed time in nanoseconds</li>
+     * </ul>
+     */
+    public static class Result {
+        public byte[]             hash;
+        public String             alg;
+        public Map<String,byte[]> hashes;
+        public Mode               mode;
+        public long               bytes;
+        public long               nanos;
+        public Result (String[] algs, byte[][] hashes, Mode mode, long bytes, long nanos) {
+            this.hash   = hashes[0];
+            this.alg    = algs[0];
+            this.hashes = new TreeMap<String,byte[]>(String.CASE_INSENSITIVE_ORDER);
+            for (int i=0; i<algs.length; i++) {
+                this.hashes.put(algs[i], hashes[i]);
+            }
+            this.mode   = mode;
+            this.bytes  = bytes;
+            this.nanos  = nanos;
+        }
+        /**
+         * Returns the hashing throughput in bytes per second.
+         * @return the throughput, or 0 if no time elapsed
+         */
+        public double throughput() {
+            return nanos>0 ? bytes*1e9/nanos : 0;
+        }
+        public String toString() {
+            return String.format("%s %s %d bytes in %.1f ms (%.1f MB/s)",
+                                 S.join(",", hashes.keySet()), mode.name().toLowerCase(), bytes, nanos/1e6, throughput()/(1024*1024));
+        }
+    }
+
+    public static final int READ = 1024*1024;
+
+    private Mode         mode      = Mode.STREAM;
+    private boolean      mapped    = false;
+    private int          chunk     = 64*1024*1024;
+    private int          ahead     = 2;
+    private long         threshold = 16*1024*1024;
+    private ForkJoinPool pool      = ForkJoinPool.commonPool();
+
+    public Hasher mode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * Sets whether regions are memory-mapped rather than read (default {@code false}).
+     * See the class description for the hazard of mapping.
+     * @param mapped {@code true} to map regions
+     * @return this
+     */
+    public Hasher mapped(boolean mapped) {
+        this.mapped = mapped;
+        return this;
+    }
+
+    /**
+     * Sets the size of the regions (default 64 MB).
+     * @param chunk the region size in bytes
+     * @return this
+     */
+    public Hasher chunk(int chunk) {
+        if (chunk<=0) throw new IllegalArgumentException("chunk must be positive");
+        this.chunk = chunk;
+        return this;
+    }
+
+    /**
+     * Sets the number of regions read ahead of the digest in {@code STREAM} mode (default 2).
+     * @param ahead the read-ahead depth
+     * @return this
+     */
+    public Hasher ahead(int ahead) {
+        if (ahead<=0) throw new IllegalArgumentException("ahead must be positive");
+        this.ahead = ahead;
+        return this;
+    }
+
+    /**
+     * Sets the file size below which files are hashed with a simple read (default 16 MB).
+     * @param threshold the threshold in bytes
+     * @return this
+     */
+    public Hasher threshold(long threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    public Hasher pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Returns the hash of the contents of {@link File} {@code f} using the
+     * indicated algorithm and the configured {@link Mode}.
+     * @param f the {@code File} to read
+     * @param alg the hash algorithm to use
+     * @return the {@link Result}
+     * @throws Exception in case of error
+     */
+    public Result hash(File f, String alg) throws Exception {
+        return hash(f, new String[] {alg});
+    }
+
+    /**
+     * Returns the hashes of the contents of {@link File} {@code f} using each of
+     * the indicated algorithms, reading the file only once.
+     * @param f the {@code File} to read
+     * @param algs the hash algorithms to use
+     * @return the {@link Result}, with {@code hash} set for the first algorithm
+     * @throws Exception in case of error
+     */
+    public Result hash(File f, Collection<String> algs) throws Exception {
+        return hash(f, algs.toArray(new String[algs.size()]));
+    }
+
+    /**
+     * Returns the hashes of the contents of {@link File} {@code f} using each of
+     * the indicated algorithms, reading the file only once.
+     * @param f the {@code File} to read
+     * @param algs the hash algorithms to use
+     * @return the {@link Result}, with {@code hash} set for the first algorithm
+     * @throws Exception in case of error
+     */
+    public Result hash(File f, String...algs) throws Exception {
+        if (algs==null || algs.length==0) {
+            throw new IllegalArgumentException("at least one hash algorithm is required");
+        }
+        digests(algs); // fail fast on a bad algorithm
+        long start = System.nanoTime();
+        long size  = f.length();
+        if (size<threshold) {
+            byte[][] hashes = small(f, algs);
+            return new Result(algs, hashes, Mode.STREAM, size, System.nanoTime()-start);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "r");
+            FileChannel channel = raf.getChannel();
+            size = channel.size();
+            byte[][] hashes = mode==Mode.TREE ? tree(channel, size, algs) : stream(channel, size, algs);
+            return new Result(algs, hashes, mode, size, System.nanoTime()-start);
+        } finally {
+            if (raf!=null) raf.close();
+        }
+    }
+
+    private static MessageDigest[] digests(String[] algs) throws NoSuchAlgorithmException {
+        MessageDigest[] mds = new MessageDigest[algs.length];
+        for (int i=0; i<algs.length; i++) {
+            mds[i] = MessageDigest.getInstance(algs[i]);
+        }
+        return mds;
+    }
+
+    private static byte[][] digest(MessageDigest[] mds) {
+        byte[][] hashes = new byte[mds.length][];
+        for (int i=0; i<mds.length; i++) {
+            hashes[i] = mds[i].digest();
+        }
+        return hashes;
+    }
+
+    private static void update(MessageDigest[] mds, byte[] buf, int n) {
+        for (MessageDigest md : mds) {
+            md.update(buf, 0, n);
+        }
+    }
+
+    /**
+     * Fans a (mapped) region out to all the digests through a heap buffer,
+     * so the region is copied out of the mapping only once.
+     */
+    private static void update(MessageDigest[] mds, ByteBuffer region, byte[] buf) {
+        if (mds.length==1) {
+            mds[0].update(region);
+            return;
+        }
+        while (region.hasRemaining()) {
+            int n = Math.min(buf.length, region.remaining());
+            region.get(buf, 0, n);
+            update(mds, buf, n);
+        }
+    }
+
+    private static byte[][] small(File f, String[] algs) throws Exception {
+        MessageDigest[] mds = digests(algs);
+        FileInputStream fis = null;
+        byte[]          buf = new byte[65536];
+        try {
+            fis = new FileInputStream(f);
+            int n;
+            while ((n = fis.read(buf)) >= 0) {
+                update(mds, buf, n);
+            }
+        } finally {
+            if (fis!=null) fis.close();
+        }
+        return digest(mds);
+    }
+
+    private static int regions(long size, int chunk) {
+        return (int)((size+chunk-1)/chunk);
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /**
+     * Reads {@code buf.remaining()} bytes of {@code channel} from {@code position} into {@code buf}.
+     */
+    private static void read(FileChannel channel, long position, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position+buf.position())<0) {
+                throw new IOException("file was truncated while hashing");
+            }
+        }
+    }
+
+    /**
+     * Updates the digests with {@code size} bytes of {@code channel} from
+     * {@code position}, read through the heap buffer {@code buf}.
+     */
+    private static void update(MessageDigest[] mds, FileChannel channel, long position, long size, byte[] buf) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        for (long done=0; done<size;) {
+            int n = (int)Math.min(buf.length, size-done);
+            bb.clear().limit(n);
+            read(channel, position+done, bb);
+            update(mds, buf, n);
+            done += n;
+        }
+    }
+
+    private CompletableFuture<ByteBuffer> prefetch(final FileChannel channel, final long position, final long size) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (mapped) {
+                    return (ByteBuffer)map(channel, position, size).load();
+                }
+                ByteBuffer region = ByteBuffer.allocate((int)size);
+                read(channel, position, region);
+                region.flip();
+                return region;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    private byte[][] stream(FileChannel channel, long size, String[] algs) throws Exception {
+        MessageDigest[] mds  = digests(algs);
+        byte[]          buf  = new byte[65536];
+        int             step = mapped ? chunk : Math.min(chunk, READ);
+        int n = regions(size, step);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<ByteBuffer>[] window = new CompletableFuture[ahead];
+        boolean done = false;
+        try {
+            for (int i=0; i<n && i<ahead; i++) {
+                window[i] = prefetch(channel, (long)i*step, Math.min(step, size-(long)i*step));
+            }
+            for (int i=0; i<n; i++) {
+                ByteBuffer region;
+                try {
+                    region = window[i%ahead].join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                }
+                window[i%ahead] = null;
+                int next = i+ahead;
+                if (next<n) {
+                    window[next%ahead] = prefetch(channel, (long)next*step, Math.min(step, size-(long)next*step));
+                }
+                update(mds, region, buf);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                // don't leave the read-ahead running on the pool
+                for (CompletableFuture<ByteBuffer> future : window) {
+                    if (future!=null) future.cancel(false);
+                }
+            }
+        }
+        return digest(mds);
+    }
+
+    private class Leaves extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private FileChannel channel;
+        private long        size;
+        private String[]    algs;
+        private byte[][][]  leaves;
+        private int         lo;
+        private int         hi;
+        public Leaves(FileChannel channel, long size, String[] algs, byte[][][] leaves, int lo, int hi) {
+            this.channel = channel;
+            this.size    = size;
+            this.algs    = algs;
+            this.leaves  = leaves;
+            this.lo      = lo;
+            this.hi      = hi;
+        }
+        @Override
+        protected void compute() {
+            if (hi-lo==1) {
+                try {
+                    long position = (long)lo*chunk;
+                    long            len = Math.min(chunk, size-position);
+                    MessageDigest[] mds = digests(algs);
+                    if (mapped) {
+                        update(mds, map(channel, position, len), new byte[65536]);
+                    } else {
+                        update(mds, channel, position, len, new byte[65536]);
+                    }
+                    leaves[lo] = digest(mds);
+                } catch (Exception e) {
+                    completeExceptionally(e);
+                }
+            } else {
+                int mid = (lo+hi)>>>1;
+                invokeAll(new Leaves(channel, size, algs, leaves, lo, mid),
+                          new Leaves(channel, size, algs, leaves, mid, hi));
+            }
+        }
+    }
+
+    private byte[][] tree(FileChannel channel, long size, String[] algs) throws Exception {
+        byte[][][] leaves = new byte[regions(size, chunk)][][];
+        if (leaves.length>0) {
+            pool.invoke(new Leaves(channel, size, algs, leaves, 0, leaves.length));
+        }
+        MessageDigest[] mds = digests(algs);
+        for (byte[][] leaf : leaves) {
+            for (int i=0; i<mds.length; i++) {
+                mds[i].update(leaf[i]);
+            }
+        }
+        return digest(mds);
+    }
+}
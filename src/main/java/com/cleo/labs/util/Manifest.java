@@ -0,0 +1,404 @@
+package com.cleo.labs.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A live manifest of the files under a directory: their size, modification
+ * time and digest, indexed by path relative to the root.  The manifest is
+ * built once by walking the tree, and is then kept current from
+ * {@link WatchService} events, so that the cost of change detection is
+ * proportional to the churn rather than to the size of the tree.
+ * <p>
+ * Events for a path are debounced: a path is only re-examined once no event
+ * for it has arrived for {@code debounce} milliseconds, so a burst of writes
+ * costs a single re-hash.  A file whose size and modification time are
+ * unchanged is not re-hashed at all, unless it was last hashed within
+ * {@link HashCache#RACY} milliseconds of that modification time, since a
+ * further change could then go unnoticed within the resolution of the file
+ * system timestamp.  If the watch service overflows, the
+ * whole tree is re-examined on the same terms.
+ */
+public class Manifest implements Closeable {
+    /**
+     * A "case" class describing a file in the manifest, including the time
+     * it was {@code examined} (hashed).
+     */
+    public static class Entry {
+        public String path;
+        public long   size;
+        public long   mtime;
+        public byte[] hash;
+        public long   examined;
+        public Entry (String path, long size, long mtime, byte[] hash) {
+            this.path     = path;
+            this.size     = size;
+            this.mtime    = mtime;
+            this.hash     = hash;
+            this.examined = System.currentTimeMillis();
+        }
+        /**
+         * Returns {@code true} if the file was hashed so soon after it was
+         * modified that a further change could share its modification time.
+         * @return {@code true} if the entry must be re-hashed even if unchanged
+         */
+        public boolean racy() {
+            return examined-mtime < HashCache.RACY;
+        }
+        public boolean same(Entry other) {
+            return other!=null && size==other.size && Arrays.equals(hash, other.hash);
+        }
+        public String toString() {
+            return path+"\t"+size+"\t"+mtime+"\t"+F.hex(hash);
+        }
+    }
+
+    /**
+     * A "case" class describing the difference between two snapshots, with
+     * the {@link Entry}s {@code added} and {@code removed}, and the new
+     * {@link Entry}s for files whose content {@code changed}.
+     */
+    public static class Diff {
+        public List<Entry> added   = new ArrayList<Entry>();
+        public List<Entry> removed = new ArrayList<Entry>();
+        public List<Entry> changed = new ArrayList<Entry>();
+        public boolean empty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+        public String toString() {
+            return String.format("%d added, %d removed, %d changed", added.size(), removed.size(), changed.size());
+        }
+    }
+
+    private File                     root;
+    private Path                     base;
+    private String                   alg      = "MD5";
+    private long                     debounce = 500;
+    private TreeMap<String,Entry>    entries  = new TreeMap<String,Entry>();
+    private LinkedHashMap<Path,Long> pending  = new LinkedHashMap<Path,Long>();
+    private Map<WatchKey,Path>       keys     = new HashMap<WatchKey,Path>();
+    private Set<Path>                dirs     = new HashSet<Path>();
+    private WatchService             watcher  = null;
+    private Thread                   thread   = null;
+    private volatile boolean         running  = false;
+
+    /**
+     * Creates a manifest of directory {@code root}, which is not built until
+     * {@link #start()}.
+     * @param root the root directory
+     */
+    public Manifest(File root) {
+        this.root = root.getAbsoluteFile();
+        this.base = this.root.toPath();
+    }
+
+    /**
+     * Sets the digest algorithm (default MD5).
+     * @param alg the algorithm
+     * @return this
+     */
+    public Manifest alg(String alg) {
+        this.alg = alg;
+        return this;
+    }
+
+    /**
+     * Sets the quiet period after the last event for a path before it is re-examined (default 500 ms).
+     * @param debounce the quiet period in milliseconds
+     * @return this
+     */
+    public Manifest debounce(long debounce) {
+        this.debounce = debounce;
+        return this;
+    }
+
+    /**
+     * Builds the initial manifest and starts watching for changes on a daemon thread.
+     * @return this
+     * @throws IOException if the tree can not be walked or watched
+     */
+    public Manifest start() throws IOException {
+        if (!root.isDirectory()) {
+            throw new IOException("manifest root must be a directory");
+        }
+        watcher = FileSystems.getDefault().newWatchService();
+        scan(base);
+        running = true;
+        thread  = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "manifest "+root.getName());
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Stops watching.  The manifest remains available for queries.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (watcher!=null) watcher.close();
+        if (thread!=null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ignore) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private String relative(Path p) {
+        return base.relativize(p).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Walks {@code start}, registering its directories and examining its files.
+     * @return the relative paths of the files seen
+     */
+    private Set<String> scan(Path start) throws IOException {
+        final Set<String> seen = new HashSet<String>();
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    examine(file, attrs);
+                    seen.add(relative(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return seen;
+    }
+
+    private synchronized void register(Path dir) throws IOException {
+        if (dirs.add(dir)) {
+            keys.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                           StandardWatchEventKinds.ENTRY_MODIFY,
+                                           StandardWatchEventKinds.ENTRY_DELETE), dir);
+        }
+    }
+
+    /**
+     * Updates the entry for a regular file, re-hashing it only if its size or
+     * modification time has changed, or if the entry is {@link Entry#racy() racy}.
+     */
+    private void examine(Path file, BasicFileAttributes attrs) {
+        String path  = relative(file);
+        long   mtime = attrs.lastModifiedTime().toMillis();
+        Entry  old;
+        synchronized (this) {
+            old = entries.get(path);
+        }
+        if (old!=null && old.size==attrs.size() && old.mtime==mtime && !old.racy()) {
+            return;
+        }
+        long   now  = System.currentTimeMillis();
+        byte[] hash = F.hashOrNull(file.toFile(), alg);
+        if (hash==null) {
+            return; // vanished or unreadable: a later event will tell
+        }
+        Entry e = new Entry(path, attrs.size(), mtime, hash);
+        e.examined = now; // as of the start of the read
+        synchronized (this) {
+            entries.put(path, e);
+        }
+    }
+
+    /**
+     * Re-examines a path after its events have settled: a removed path drops
+     * its entry (and those of any files under it), a directory is scanned and
+     * a file is examined.
+     */
+    private void settle(Path p) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (IOException gone) {
+            String path = relative(p);
+            synchronized (this) {
+                entries.remove(path);
+                entries.subMap(path+"/", path+"0").clear(); // '0' follows '/'
+            }
+            return;
+        }
+        if (attrs.isDirectory()) {
+            try {
+                // drop the files that disappeared without an event (after an overflow)
+                Set<String> seen = scan(p);
+                synchronized (this) {
+                    String path = relative(p);
+                    Map<String,Entry> under = path.isEmpty() ? entries : entries.subMap(path+"/", path+"0");
+                    under.keySet().retainAll(seen);
+                }
+            } catch (IOException ignore) {}
+        } else if (attrs.isRegularFile()) {
+            examine(p, attrs);
+        }
+    }
+
+    private void watch() {
+        while (running) {
+            long wait = flush(false);
+            WatchKey key;
+            try {
+                key = wait<0 ? watcher.take() : watcher.poll(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            if (key==null) continue;
+            Path dir;
+            synchronized (this) {
+                dir = keys.get(key);
+            }
+            long deadline = System.currentTimeMillis()+debounce;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind()==StandardWatchEventKinds.OVERFLOW) {
+                    synchronized (this) {
+                        pending.put(base, deadline);
+                    }
+                } else if (dir!=null) {
+                    Path p = dir.resolve((Path)event.context());
+                    synchronized (this) {
+                        pending.remove(p); // re-insert to keep deadline order
+                        pending.put(p, deadline);
+                    }
+                }
+            }
+            if (!key.reset()) {
+                synchronized (this) {
+                    dirs.remove(keys.remove(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Settles the pending paths whose quiet period has passed, or all of them
+     * if {@code all}.
+     * @return the milliseconds until the next pending path is due, or -1 if none
+     */
+    private long flush(boolean all) {
+        while (true) {
+            Path p;
+            synchronized (this) {
+                Iterator<Map.Entry<Path,Long>> i = pending.entrySet().iterator();
+                if (!i.hasNext()) {
+                    return -1;
+                }
+                Map.Entry<Path,Long> next = i.next();
+                long due = next.getValue()-System.currentTimeMillis();
+                if (due>0 && !all) {
+                    return due;
+                }
+                p = next.getKey();
+                i.remove();
+            }
+            settle(p);
+        }
+    }
+
+    /**
+     * Settles all pending changes without waiting for their quiet period.
+     * Changes whose events have not yet been delivered are not included.
+     */
+    public void flush() {
+        flush(true);
+    }
+
+    /**
+     * Returns the number of paths with changes waiting to be settled.
+     * @return the number of pending paths
+     */
+    public synchronized int pending() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the current {@link Entry} for the relative {@code path}, or {@code null}.
+     * @param path the path relative to the root, with {@code /} separators
+     * @return the {@link Entry} or {@code null}
+     */
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Returns a snapshot of the manifest, indexed by relative path.
+     * @return an unmodifiable snapshot
+     */
+    public synchronized SortedMap<String,Entry> snapshot() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String,Entry>(entries));
+    }
+
+    /**
+     * Returns the changes between an earlier {@link #snapshot()} and now.
+     * @param before the earlier snapshot
+     * @return the {@link Diff}
+     */
+    public Diff since(Map<String,Entry> before) {
+        return diff(before, snapshot());
+    }
+
+    /**
+     * Returns the changes from snapshot {@code before} to snapshot {@code after}.
+     * Files whose content is unchanged are not reported, even if they were touched.
+     * @param before the earlier snapshot
+     * @param after the later snapshot
+     * @return the {@link Diff}
+     */
+    public static Diff diff(Map<String,Entry> before, Map<String,Entry> after) {
+        Diff diff = new Diff();
+        for (Entry e : after.values()) {
+            Entry old = before.get(e.path);
+            if (old==null) {
+                diff.added.add(e);
+            } else if (!old.same(e)) {
+                diff.changed.add(e);
+            }
+        }
+        for (Entry e : before.values()) {
+            if (!after.containsKey(e.path)) {
+                diff.removed.add(e);
+            }
+        }
+        return diff;
+    }
+}
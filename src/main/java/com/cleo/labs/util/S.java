@@ -1,14 +1,26 @@
 package com.cleo.labs.util;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Array;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.MissingFormatArgumentException;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -262,7 +274,61 @@ public class S {
      * @return          the concatenated strings
      */
     public static String join(String separator, Map<?,?> map, final String format) {
-        return join(separator, map, new Sprintf(format));
+        Template template = Template.compiled(format);
+        return template!=null ? join(separator, map, template) : join(separator, map, new Sprintf(format));
+    }
+
+    /**
+     * Special laminating joiner for Maps, rendering each {@code Map.Entry} with
+     * the compiled {@link Template}, with the key as the first argument and the
+     * value as the second, into a single shared buffer.
+     * @param separator the separator
+     * @param map       the map
+     * @param template  the lamination template
+     * @return          the concatenated strings
+     */
+    public static String join(String separator, Map<?,?> map, Template template) {
+        if (map==null) return "";
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            if (s.length()>0) s.append(separator);
+            template.render(s, e.getKey().toString(), e.getValue().toString());
+        }
+        return s.toString();
+    }
+
+    /**
+     * Returns {@code String}s each rendered with the compiled {@link Template}
+     * and concatenated with a separator, like {@code join(separator, lam(a, template))}
+     * but into a single shared buffer.
+     * @param separator the separator
+     * @param a         the list of strings
+     * @param template  the template, with one argument
+     * @return          the concatenated strings
+     */
+    public static String join(String separator, Collection<String> a, Template template) {
+        if (a==null) return "";
+        StringBuilder s = new StringBuilder();
+        boolean first = true;
+        for (String item : a) {
+            if (!first) s.append(separator);
+            template.render(s, item);
+            first = false;
+        }
+        return s.toString();
+    }
+
+    /**
+     * Returns {@code String}s each rendered with the compiled {@link Template}
+     * and concatenated with a separator.
+     * @param separator the separator
+     * @param a         the list of strings
+     * @param template  the template, with one argument
+     * @return          the concatenated strings
+     */
+    public static String join(String separator, String[] a, Template template) {
+        if (a==null) return "";
+        return join(separator, Arrays.asList(a), template);
     }
 
 
@@ -270,20 +336,196 @@ public class S {
         public T inspect(String[] group) throws IllegalArgumentException;
     }
 
+    /**
+     * Inspects a clause matched by {@link S#megascan(Pattern, CharSequence, GroupInspector)}
+     * through the matcher itself rather than a copy of its groups: use
+     * {@code group.start(i)} and {@code group.end(i)} to look at {@code input}
+     * in place, and {@code group.group(i)} only for the substrings actually kept.
+     * Both are valid only for the duration of the call.
+     */
+    public interface GroupInspector<T> {
+        public T inspect(CharSequence input, MatchResult group) throws IllegalArgumentException;
+    }
+
     public interface Formatter {
         public String format(Map.Entry<?,?> entry);
     }
 
     public static class Sprintf implements Formatter {
-        private String sprintf;
+        private String   sprintf;
+        private Template template;
         public Sprintf(String sprintf) {
-            this.sprintf = sprintf;
+            this.sprintf  = sprintf;
+            this.template = Template.compiled(sprintf);
         }
         public String format(Map.Entry<?,?> entry) {
+            if (template!=null) {
+                return template.format(entry);
+            }
             return String.format(sprintf, entry.getKey().toString(), entry.getValue().toString());
         }
     }
 
+    /**
+     * A format string compiled once into literal and argument segments, for
+     * the subset of {@link String#format(String, Object...)} used for
+     * laminating: {@code %s}, {@code %n}$s (explicit argument index), {@code %n}
+     * and {@code %%}.  Rendering appends the segments to a caller's
+     * {@link StringBuilder}, with no reparsing of the format and no argument array
+     * for one or two arguments, and produces the same result as
+     * {@code String.format}.
+     */
+    public static class Template implements Formatter {
+        private String   format;
+        private String[] literals; // literals[i] precedes slots[i], the last one trails
+        private int[]    slots;    // the (0-based) argument index of each slot
+        private int      arity;
+
+        /**
+         * Compiles {@code format}.
+         * @param format the format string
+         * @throws IllegalArgumentException if {@code format} uses any other conversion
+         */
+        public Template(String format) {
+            this.format = format;
+            List<String>  literals = new ArrayList<String>();
+            List<Integer> slots    = new ArrayList<Integer>();
+            StringBuilder literal  = new StringBuilder();
+            int ordinary = 0;
+            int i = 0;
+            while (i<format.length()) {
+                char c = format.charAt(i++);
+                if (c!='%') {
+                    literal.append(c);
+                    continue;
+                }
+                if (i>=format.length()) {
+                    throw new IllegalArgumentException("incomplete format specifier at end of "+format);
+                }
+                c = format.charAt(i++);
+                int index;
+                if (c=='%') {
+                    literal.append('%');
+                    continue;
+                } else if (c=='n') {
+                    literal.append(System.lineSeparator());
+                    continue;
+                } else if (c=='s') {
+                    index = ordinary++;
+                } else if (c>='1' && c<='9') {
+                    int start = i-1;
+                    while (i<format.length() && Character.isDigit(format.charAt(i))) i++;
+                    if (i+1>=format.length() || format.charAt(i)!='$' || format.charAt(i+1)!='s') {
+                        throw new IllegalArgumentException("unsupported format specifier in "+format);
+                    }
+                    index = Integer.parseInt(format.substring(start, i))-1;
+                    i += 2;
+                } else {
+                    throw new IllegalArgumentException("unsupported format specifier %"+c+" in "+format);
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                slots.add(index);
+                arity = Math.max(arity, index+1);
+            }
+            literals.add(literal.toString());
+            this.literals = literals.toArray(new String[literals.size()]);
+            this.slots    = new int[slots.size()];
+            for (int k=0; k<this.slots.length; k++) {
+                this.slots[k] = slots.get(k);
+            }
+        }
+
+        /**
+         * Returns the compiled {@code format}, or {@code null} if it uses
+         * conversions that a {@link Template} does not support.
+         * @param format the format string
+         * @return the {@link Template} or {@code null}
+         */
+        public static Template compiled(String format) {
+            try {
+                return new Template(format);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Returns the number of arguments the template uses.
+         * @return the number of arguments
+         */
+        public int arity() {
+            return arity;
+        }
+
+        private static Object arg(Object[] args, int index) {
+            if (index>=args.length) {
+                throw new MissingFormatArgumentException("%"+(index+1)+"$s");
+            }
+            return args[index];
+        }
+
+        /**
+         * Appends the template rendered with {@code args} to {@code sb}.
+         * @param sb the {@link StringBuilder}
+         * @param args the arguments
+         * @return {@code sb}
+         */
+        public StringBuilder render(StringBuilder sb, Object...args) {
+            for (int i=0; i<slots.length; i++) {
+                sb.append(literals[i]).append(arg(args, slots[i]));
+            }
+            return sb.append(literals[slots.length]);
+        }
+
+        /**
+         * Appends the template rendered with the single argument {@code a} to {@code sb}.
+         * @param sb the {@link StringBuilder}
+         * @param a the argument
+         * @return {@code sb}
+         */
+        public StringBuilder render(StringBuilder sb, Object a) {
+            if (arity>1) arg(new Object[1], arity-1);
+            for (int i=0; i<slots.length; i++) {
+                sb.append(literals[i]).append(a);
+            }
+            return sb.append(literals[slots.length]);
+        }
+
+        /**
+         * Appends the template rendered with the arguments {@code a} and {@code b} to {@code sb}.
+         * @param sb the {@link StringBuilder}
+         * @param a the first argument
+         * @param b the second argument
+         * @return {@code sb}
+         */
+        public StringBuilder render(StringBuilder sb, Object a, Object b) {
+            if (arity>2) arg(new Object[2], arity-1);
+            for (int i=0; i<slots.length; i++) {
+                sb.append(literals[i]).append(slots[i]==0 ? a : b);
+            }
+            return sb.append(literals[slots.length]);
+        }
+
+        /**
+         * Returns the template rendered with {@code args}, like
+         * {@code String.format(format, args)}.
+         * @param args the arguments
+         * @return the rendered {@link String}
+         */
+        public String format(Object...args) {
+            return render(new StringBuilder(), args).toString();
+        }
+
+        public String format(Map.Entry<?,?> entry) {
+            return render(new StringBuilder(), entry.getKey().toString(), entry.getValue().toString()).toString();
+        }
+
+        public String toString() {
+            return format;
+        }
+    }
+
     // Pattern.compile("(?i)\\s*(!)?\\s*(\\w+)\\s*(?:([><])=\\s*(\\d+)\\s*)?");
     public static <T> List<T> megasplit(Pattern clause, String s, Inspector<T> inspector) {
         ArrayList<T> result = new ArrayList<T>();
@@ -312,6 +554,146 @@ public class S {
         return result;
     }
 
+    /**
+     * A lazy {@link #megasplit(Pattern, String, Inspector)}: the clauses are
+     * matched and inspected one at a time as the {@link Iterator} is advanced.
+     * A parsing error, or an {@link IllegalArgumentException} from the
+     * inspector, is thrown from {@code hasNext()} or {@code next()} when the
+     * offending clause is reached, with the same message as {@code megasplit}.
+     * @param clause the pattern matching each clause
+     * @param s the input (may be {@code null})
+     * @param inspector the inspector for each clause
+     * @return an {@link Iterator} over the inspected clauses
+     */
+    public static <T> Iterator<T> megascan(Pattern clause, CharSequence s, GroupInspector<T> inspector) {
+        return new Scan<T>(clause, s==null ? "" : s, null, inspector);
+    }
+
+    /**
+     * A lazy {@link #megasplit(Pattern, String, Inspector)} over a {@link Reader},
+     * which is read only as far as needed to match the next clause.  Text
+     * before the current clause is discarded as the scan proceeds, so the
+     * clause pattern should not look behind the start of the clause.  An error
+     * is reported without reading further: the message gives the offset of the
+     * error, and only the buffered text around it, with any text discarded
+     * before it or not yet read after it shown as {@code ...}.  Read errors are thrown as
+     * {@link UncheckedIOException}.  The reader is not closed.
+     * @param clause the pattern matching each clause
+     * @param reader the input
+     * @param inspector the inspector for each clause
+     * @return an {@link Iterator} over the inspected clauses
+     */
+    public static <T> Iterator<T> megascan(Pattern clause, Reader reader, GroupInspector<T> inspector) {
+        return new Scan<T>(clause, new StringBuilder(), reader, inspector);
+    }
+
+    private static class Scan<T> implements Iterator<T> {
+        private static final int CHUNK = 8192;
+
+        private CharSequence      input;
+        private Reader            reader;    // null when input is complete
+        private GroupInspector<T> inspector;
+        private Matcher           m;
+        private int               i         = 0;     // where the next clause must start
+        private long              discarded = 0;     // chars dropped from the front of a reader's buffer
+        private boolean           ready     = false; // next is waiting
+        private boolean           done      = false;
+        private boolean           stuck     = false; // the last clause was empty
+        private T                 next      = null;
+
+        private Scan(Pattern clause, CharSequence input, Reader reader, GroupInspector<T> inspector) {
+            this.input     = input;
+            this.reader    = reader;
+            this.inspector = inspector;
+            this.m         = clause.matcher(input).useTransparentBounds(true).useAnchoringBounds(false);
+        }
+
+        /**
+         * Reads another chunk into the buffer, first discarding the text before
+         * the current clause if {@code compact}, returning false at end of input.
+         */
+        private boolean more(boolean compact) {
+            if (reader==null) return false;
+            StringBuilder buf = (StringBuilder) input;
+            if (compact && i>=CHUNK) {
+                buf.delete(0, i);
+                discarded += i;
+                i = 0;
+            }
+            char[] chunk = new char[CHUNK];
+            try {
+                int n = reader.read(chunk);
+                if (n<0) {
+                    reader = null;
+                    return false;
+                }
+                buf.append(chunk, 0, n);
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private IllegalArgumentException error(String err) {
+            done = true;
+            if (reader==null && discarded==0) {
+                return new IllegalArgumentException(err+": "+input.subSequence(0, i)+"-->"+input.subSequence(i, input.length()));
+            }
+            // only the buffered text, rather than reading the rest of the input
+            return new IllegalArgumentException(err+" at offset "+(discarded+i)+": "+(discarded>0 ? "..." : "")+
+                                                input.subSequence(0, i)+"-->"+input.subSequence(i, input.length())+
+                                                (reader!=null ? "..." : ""));
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (ready) return true;
+            if (done) return false;
+            if (stuck) {
+                // like find(), never match empty at the same place twice
+                done = true;
+                if (i<input.length() || more(false)) {
+                    throw error("parsing error");
+                }
+                return false;
+            }
+            boolean matched;
+            while (true) {
+                m.region(i, input.length());
+                matched = m.lookingAt();
+                if (!(m.hitEnd() && more(true))) break;
+            }
+            if (!matched) {
+                done = true;
+                if (i<input.length()) {
+                    throw error("parsing error");
+                }
+                return false;
+            }
+            try {
+                next = inspector.inspect(input, m);
+            } catch (IllegalArgumentException e) {
+                i = m.end();
+                throw error(e.getMessage());
+            }
+            stuck = m.end()==i;
+            i     = m.end();
+            ready = true;
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            T result = next;
+            next = null;
+            return result;
+        }
+    }
+
     public static String join(String separator, Map<?,?> map, Formatter formatter) {
         if (map==null) return "";
         StringBuilder s = new StringBuilder();
@@ -325,6 +707,9 @@ public class S {
     public static final Pattern COMMA_EQUALS = Pattern.compile("[\\s,]*(\\w+)=([^,]*)[\\s,]*");
 
     public static Map<String,String> split(String s, Pattern format) {
+        if (format==COMMA_EQUALS) {
+            return split(s, null, false);
+        }
         final Map<String,String> result = new LinkedHashMap<String,String>();
         megasplit(format, s, new Inspector<Object> () {
             public Object inspect(String [] group) {
@@ -335,6 +720,54 @@ public class S {
         return result;
     }
 
+    private static boolean separator(char c) {
+        return c==',' || c==' ' || c=='\t' || c=='\n' || c=='\u000B' || c=='\f' || c=='\r';
+    }
+
+    private static boolean word(char c) {
+        return c>='a' && c<='z' || c>='A' && c<='Z' || c>='0' && c<='9' || c=='_';
+    }
+
+    /**
+     * Parses {@code key=value} pairs separated by commas in a single pass,
+     * exactly as {@code split(s, COMMA_EQUALS)} would with the regular
+     * expression: keys are runs of word characters, values run up to the next
+     * comma or the end (whitespace included), and
+     * whitespace and commas between pairs are skipped.  A later value for a
+     * key replaces an earlier one.
+     * @param s the string to parse (may be {@code null})
+     * @param into the map to add the pairs to, or {@code null} for a new {@link LinkedHashMap}
+     * @param intern whether to {@link String#intern()} the keys
+     * @return {@code into}, or the new map
+     * @throws IllegalArgumentException if {@code s} does not parse, with the
+     *         same message as {@link #megasplit(Pattern, String, Inspector)}
+     */
+    public static Map<String,String> split(CharSequence s, Map<String,String> into, boolean intern) {
+        if (into==null) into = new LinkedHashMap<String,String>();
+        if (s==null) return into;
+        int n = s.length();
+        int i = 0;
+        while (i<n) {
+            int p = i;
+            while (p<n && separator(s.charAt(p))) p++;
+            int k = p;
+            while (p<n && word(s.charAt(p))) p++;
+            if (p==k || p==n || s.charAt(p)!='=') {
+                break;
+            }
+            String key = s.subSequence(k, p).toString();
+            int v = ++p;
+            while (p<n && s.charAt(p)!=',') p++;
+            into.put(intern ? key.intern() : key, s.subSequence(v, p).toString());
+            while (p<n && separator(s.charAt(p))) p++;
+            i = p;
+        }
+        if (i<n) {
+            throw new IllegalArgumentException("parsing error: "+s.subSequence(0, i)+"-->"+s.subSequence(i, n));
+        }
+        return into;
+    }
+
     /**
      * Returns a {@code List} of the same item repeated a number of times.
      * @param item the item to repeat
@@ -371,18 +804,48 @@ public class S {
     }
 
     public static String[] lam(List<String> a, List<String> b, String format) {
+        Template template = Template.compiled(format);
+        if (template!=null) {
+            return lam(a, b, template);
+        }
         int la = a.size();
         int lb = b.size();
         int l = Math.max(la, lb);
         String[] result = new String[l];
         for (int i=0; i<l; i++) {
-            String ai = i>la ? "" : a.get(i);
-            String bi = i>lb ? "" : b.get(i);
+            String ai = i>=la ? "" : a.get(i);
+            String bi = i>=lb ? "" : b.get(i);
             result[i] = String.format(format, ai, bi);
         }
         return result;
     }
 
+    /**
+     * Laminates two lists together using a compiled {@link Template}, expected to
+     * have two arguments.  Empty strings are substituted for the end of the shorter
+     * list, if the lists are not the same length.
+     * @param a the left list
+     * @param b the right list
+     * @param template the template
+     * @return the laminated list
+     */
+    public static String[] lam(List<String> a, List<String> b, Template template) {
+        int la = a.size();
+        int lb = b.size();
+        int l = Math.max(la, lb);
+        String[] result = new String[l];
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<l; i++) {
+            sb.setLength(0);
+            result[i] = template.render(sb, i>=la ? "" : a.get(i), i>=lb ? "" : b.get(i)).toString();
+        }
+        return result;
+    }
+
+    public static String[] lam(String[] a, String[] b, Template template) {
+        return lam(Arrays.asList(a), Arrays.asList(b), template);
+    }
+
     /**
      * Like lam(a, new String[]{}, format) but more efficiently.  Of course
      * laminating to nothing is like map-format, but there you go.
@@ -395,6 +858,10 @@ public class S {
     }
 
     public static String[] lam(List<String> a, String format) {
+        Template template = Template.compiled(format);
+        if (template!=null) {
+            return lam(a, template);
+        }
         int la = a.size();
         String[] result = new String[la];
         for (int i=0; i<la; i++) {
@@ -403,6 +870,28 @@ public class S {
         return result;
     }
 
+    /**
+     * Maps each string in a list through a compiled {@link Template}, expected
+     * to have one argument.
+     * @param a the list
+     * @param template the template
+     * @return the mapped list
+     */
+    public static String[] lam(List<String> a, Template template) {
+        int la = a.size();
+        String[] result = new String[la];
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<la; i++) {
+            sb.setLength(0);
+            result[i] = template.render(sb, a.get(i)).toString();
+        }
+        return result;
+    }
+
+    public static String[] lam(String[] a, Template template) {
+        return lam(Arrays.asList(a), template);
+    }
+
     /**
      * Like {@code lam(a, b, "%s%s")} but more efficiently.
      * @param a
@@ -427,8 +916,8 @@ public class S {
         int l = Math.max(la, lb);
         String[] result = new String[l];
         for (int i=0; i<l; i++) {
-            result[i] = i>la ? b.get(i)
-                      : i>lb ? a.get(i)
+            result[i] = i>=la ? b.get(i)
+                      : i>=lb ? a.get(i)
                       : a.get(i)+b.get(i);
         }
         return result;
@@ -470,6 +959,9 @@ public class S {
         public RegexFilter(String regex) {
             super(Pattern.compile(regex));
         }
+        protected RegexFilter(Pattern pattern) {
+            super(pattern);
+        }
     }
 
     public static String glob2re(String glob) {
@@ -478,9 +970,470 @@ public class S {
                           .replaceAll("\\*", ".*");
     }
 
+    /**
+     * A glob compiled for case-insensitive matching without regular expressions.
+     * {@code *} matches any run of characters and {@code ?} any single character;
+     * every other character matches itself, ignoring ASCII case as {@code (?i)}
+     * does in {@link #glob2re(String)}.  The glob is split at its {@code *}s into
+     * segments: a glob with no {@code *} is compared in place, a single leading
+     * or trailing {@code *} reduces to a suffix or prefix test, and otherwise the
+     * first and last segments are anchored and the middle ones are found
+     * left-most in turn.
+     * <p>
+     * Unlike {@link GlobFilter}, which matches with {@link #glob2re(String)},
+     * regular expression syntax in the glob is not interpreted, and the
+     * wildcards match line terminators too.  Use {@link S#glob(String)} to
+     * share compiled globs through a bounded cache.
+     */
+    public static class Glob {
+        private String   glob;
+        private char[][] segments; // folded, split at '*'
+        private boolean  leading;  // glob starts with '*'
+        private boolean  trailing; // glob ends with '*'
+        private int      min;      // the sum of the segment lengths
+
+        /**
+         * Compiles {@code glob}.
+         * @param glob the glob
+         */
+        public Glob(String glob) {
+            this.glob = glob;
+            List<char[]>  segments = new ArrayList<char[]>();
+            StringBuilder segment  = new StringBuilder();
+            for (int i=0; i<glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c=='*') {
+                    if (i==0) leading = true;
+                    if (segment.length()>0) {
+                        segments.add(segment.toString().toCharArray());
+                        segment.setLength(0);
+                    }
+                } else {
+                    segment.append(fold(c));
+                }
+            }
+            trailing = glob.endsWith("*");
+            if (segment.length()>0 || segments.isEmpty() && !leading) {
+                segments.add(segment.toString().toCharArray());
+            }
+            this.segments = segments.toArray(new char[segments.size()][]);
+            for (char[] seg : this.segments) {
+                min += seg.length;
+            }
+        }
+
+        private static char fold(char c) {
+            return c>='A' && c<='Z' ? (char)(c+('a'-'A')) : c;
+        }
+
+        /**
+         * Returns {@code true} if {@code segment} matches {@code s} at {@code at}.
+         */
+        private static boolean at(char[] segment, CharSequence s, int at) {
+            for (int i=0; i<segment.length; i++) {
+                char c = segment[i];
+                if (c!='?' && c!=fold(s.charAt(at+i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns {@code true} if the whole of {@code s} matches the glob.
+         * @param s the {@link CharSequence} to match
+         * @return {@code true} if it matches
+         */
+        public boolean matches(CharSequence s) {
+            int n = s.length();
+            if (n<min) {
+                return false;
+            }
+            int k = segments.length;
+            if (!leading && !trailing && k==1) {
+                return n==min && at(segments[0], s, 0);
+            } else if (k==0) {
+                return true; // all *s
+            }
+            int from = 0;
+            int to   = n;
+            int first = 0;
+            int last  = k;
+            if (!leading) {
+                if (!at(segments[0], s, 0)) return false;
+                from = segments[0].length;
+                first++;
+            }
+            if (!trailing) {
+                if (!at(segments[k-1], s, n-segments[k-1].length)) return false;
+                to = n-segments[k-1].length;
+                last--;
+            }
+            for (int i=first; i<last; i++) {
+                char[] segment = segments[i];
+                int limit = to-segment.length;
+                while (from<=limit && !at(segment, s, from)) {
+                    from++;
+                }
+                if (from>limit) {
+                    return false;
+                }
+                from += segment.length;
+            }
+            return from<=to;
+        }
+
+        /**
+         * Returns {@code true} if {@link #matches(CharSequence)} agrees with the
+         * {@link #glob2re(String)} regular expression for {@code glob} on any
+         * string without line terminators: the glob uses no regular expression
+         * syntax that {@code glob2re} leaves unescaped.
+         */
+        static boolean regular(String glob) {
+            for (int i=0; i<glob.length(); i++) {
+                if ("\\^$|+{}".indexOf(glob.charAt(i))>=0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns {@code true} if {@code s} contains a character that {@code .}
+         * does not match in a regular expression.
+         */
+        static boolean terminated(CharSequence s) {
+            for (int i=0; i<s.length(); i++) {
+                char c = s.charAt(i);
+                if (c=='\n' || c=='\r' || c=='\u0085' || c=='\u2028' || c=='\u2029') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public String toString() {
+            return glob;
+        }
+    }
+
+    private static final int                            GLOB_CACHE = 256;
+    private static final ConcurrentHashMap<String,Glob>    globs      = new ConcurrentHashMap<String,Glob>();
+    private static final ConcurrentHashMap<String,Pattern> globres    = new ConcurrentHashMap<String,Pattern>();
+
+    /**
+     * Returns the value cached for {@code key}, computing it if needed, and
+     * evicting an arbitrary entry once the cache holds {@code GLOB_CACHE}.
+     */
+    private static <V> V cached(ConcurrentHashMap<String,V> cache, String key, Function<String,V> compute) {
+        V value = cache.get(key);
+        if (value==null) {
+            if (cache.size()>=GLOB_CACHE) {
+                Iterator<String> i = cache.keySet().iterator();
+                if (i.hasNext()) cache.remove(i.next());
+            }
+            value = cache.computeIfAbsent(key, compute);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the compiled {@link Glob} for {@code glob} from a bounded cache,
+     * compiling it if needed.
+     * @param glob the glob
+     * @return the compiled {@link Glob}
+     */
+    public static Glob glob(String glob) {
+        return cached(globs, glob, Glob::new);
+    }
+
     public static class GlobFilter<T> extends RegexFilter<T> {
+        private Glob glob; // null if the glob uses regex syntax
         public GlobFilter(String glob) {
-            super(glob2re(glob));
+            super(cached(globres, glob, g -> Pattern.compile(glob2re(g))));
+            this.glob = Glob.regular(glob) ? glob(glob) : null;
+        }
+        @Override
+        public boolean accept(T object) {
+            String s = object.toString();
+            if (glob!=null && !Glob.terminated(s)) {
+                return glob.matches(s);
+            }
+            return super.accept(object);
+        }
+    }
+
+    /**
+     * Many globs and regular expressions compiled together, so that a key can be
+     * classified against all of them in a single pass rather than one pass per
+     * pattern.  Patterns are numbered in the order they are added.
+     * <ul>
+     * <li>literal globs are found with one hash lookup</li>
+     * <li>{@code prefix*} and {@code *suffix} globs share tries that are walked
+     *     once along the key (backwards for suffixes)</li>
+     * <li>other globs contribute their longest literal run to an Aho-Corasick
+     *     automaton, and only those whose run occurs in the key are matched
+     *     in full</li>
+     * <li>globs with no literal run, and regular expressions, are matched
+     *     individually</li>
+     * </ul>
+     * Globs match as {@link Glob} does.  As a {@link Filter} a {@code FilterSet}
+     * accepts keys matching any of its patterns, so it can be passed to
+     * {@link S#filter(Map, Filter)} and {@link S#prune(Map, Filter)} directly.
+     * Add all the patterns before matching: the structure is compiled on first
+     * use, and is then safe for concurrent matching.
+     */
+    public static class FilterSet implements Filter<String> {
+        private static class Node {
+            private Map<Character,Node> next = new HashMap<Character,Node>();
+            private Node                fail = null;
+            private int[]               out  = new int[0];
+            private Node child(char c) {
+                Node child = next.get(c);
+                if (child==null) {
+                    child = new Node();
+                    next.put(c, child);
+                }
+                return child;
+            }
+            private void emit(int...ids) {
+                int n = out.length;
+                out = Arrays.copyOf(out, n+ids.length);
+                System.arraycopy(ids, 0, out, n, ids.length);
+            }
+        }
+
+        private List<Object>        patterns = new ArrayList<Object>(); // Glob or Pattern
+        private Map<String,int[]>   exact    = null;
+        private Node                prefixes = null;
+        private Node                suffixes = null;
+        private Node                keywords = null;
+        private int[]               all      = null;
+        private int[]               verify   = null; // ids found by keywords, matched in full
+        private int[]               rest     = null; // ids matched individually
+        private volatile boolean    compiled = false;
+
+        /**
+         * Adds globs, matched as by {@link Glob}.
+         * @param globs the globs
+         * @return this
+         */
+        public synchronized FilterSet glob(String...globs) {
+            for (String glob : globs) {
+                patterns.add(new Glob(glob));
+            }
+            compiled = false;
+            return this;
+        }
+
+        /**
+         * Adds regular expressions, matched against the whole key.
+         * @param regexes the regular expressions
+         * @return this
+         */
+        public synchronized FilterSet regex(String...regexes) {
+            for (String regex : regexes) {
+                patterns.add(Pattern.compile(regex));
+            }
+            compiled = false;
+            return this;
+        }
+
+        /**
+         * Returns the number of patterns.
+         * @return the number of patterns
+         */
+        public synchronized int size() {
+            return patterns.size();
+        }
+
+        private static int[] ids(List<Integer> list) {
+            int[] ids = new int[list.size()];
+            for (int i=0; i<ids.length; i++) {
+                ids[i] = list.get(i);
+            }
+            return ids;
+        }
+
+        /**
+         * Returns the longest run of a glob's segments without a {@code ?}, or {@code ""}.
+         */
+        private static String keyword(Glob glob) {
+            String longest = "";
+            for (char[] segment : glob.segments) {
+                for (String run : new String(segment).split("\\?")) {
+                    if (run.length()>longest.length()) longest = run;
+                }
+            }
+            return longest;
+        }
+
+        private static boolean wild(char[] segment) {
+            return new String(segment).indexOf('?')>=0;
+        }
+
+        private synchronized void compile() {
+            if (compiled) return;
+            exact    = new HashMap<String,int[]>();
+            prefixes = new Node();
+            suffixes = new Node();
+            keywords = new Node();
+            List<Integer> all    = new ArrayList<Integer>();
+            List<Integer> verify = new ArrayList<Integer>();
+            List<Integer> rest   = new ArrayList<Integer>();
+            for (int id=0; id<patterns.size(); id++) {
+                Object pattern = patterns.get(id);
+                if (!(pattern instanceof Glob)) {
+                    rest.add(id);
+                    continue;
+                }
+                Glob glob = (Glob) pattern;
+                char[][] segments = glob.segments;
+                if (segments.length==0) {
+                    all.add(id);
+                } else if (segments.length==1 && !wild(segments[0]) && !(glob.leading && glob.trailing)) {
+                    String literal = new String(segments[0]);
+                    if (!glob.leading && !glob.trailing) {
+                        int[] ids = exact.get(literal);
+                        ids = ids==null ? new int[1] : Arrays.copyOf(ids, ids.length+1);
+                        ids[ids.length-1] = id;
+                        exact.put(literal, ids);
+                    } else {
+                        Node node = glob.leading ? suffixes : prefixes;
+                        for (int i=0; i<literal.length(); i++) {
+                            node = node.child(literal.charAt(glob.leading ? literal.length()-1-i : i));
+                        }
+                        node.emit(id);
+                    }
+                } else {
+                    String keyword = keyword(glob);
+                    if (keyword.isEmpty()) {
+                        rest.add(id);
+                    } else {
+                        Node node = keywords;
+                        for (int i=0; i<keyword.length(); i++) {
+                            node = node.child(keyword.charAt(i));
+                        }
+                        node.emit(id);
+                        verify.add(id);
+                    }
+                }
+            }
+            // Aho-Corasick failure links, breadth first, merging outputs along them
+            keywords.fail = keywords;
+            Deque<Node> queue = new ArrayDeque<Node>();
+            for (Node child : keywords.next.values()) {
+                child.fail = keywords;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                Node node = queue.remove();
+                for (Map.Entry<Character,Node> e : node.next.entrySet()) {
+                    char c     = e.getKey();
+                    Node child = e.getValue();
+                    Node f     = node.fail;
+                    while (f!=keywords && !f.next.containsKey(c)) {
+                        f = f.fail;
+                    }
+                    Node target = f.next.get(c);
+                    child.fail = target!=null && target!=child ? target : keywords;
+                    child.emit(child.fail.out);
+                    queue.add(child);
+                }
+            }
+            this.all    = ids(all);
+            this.verify = ids(verify);
+            this.rest   = ids(rest);
+            compiled = true;
+        }
+
+        private boolean matches(int id, CharSequence key) {
+            Object pattern = patterns.get(id);
+            return pattern instanceof Glob ? ((Glob)pattern).matches(key)
+                                           : ((Pattern)pattern).matcher(key).matches();
+        }
+
+        /**
+         * Classifies {@code key} against all the patterns at once.
+         * @param key the key
+         * @return the set of the numbers of the patterns it matches
+         */
+        public BitSet match(CharSequence key) {
+            if (!compiled) compile();
+            BitSet hits = new BitSet(patterns.size());
+            int    n    = key.length();
+            char[] folded = new char[n];
+            for (int i=0; i<n; i++) {
+                folded[i] = Glob.fold(key.charAt(i));
+            }
+            for (int id : all) {
+                hits.set(id);
+            }
+            int[] ids = exact.get(new String(folded));
+            if (ids!=null) {
+                for (int id : ids) hits.set(id);
+            }
+            Node node = prefixes;
+            for (int i=0; i<n && node!=null; i++) {
+                node = node.next.get(folded[i]);
+                if (node!=null) for (int id : node.out) hits.set(id);
+            }
+            node = suffixes;
+            for (int i=n-1; i>=0 && node!=null; i--) {
+                node = node.next.get(folded[i]);
+                if (node!=null) for (int id : node.out) hits.set(id);
+            }
+            if (verify.length>0) {
+                BitSet candidates = new BitSet(patterns.size());
+                node = keywords;
+                for (int i=0; i<n; i++) {
+                    char c = folded[i];
+                    while (node!=keywords && !node.next.containsKey(c)) {
+                        node = node.fail;
+                    }
+                    Node next = node.next.get(c);
+                    node = next==null ? keywords : next;
+                    for (int id : node.out) candidates.set(id);
+                }
+                for (int id=candidates.nextSetBit(0); id>=0; id=candidates.nextSetBit(id+1)) {
+                    if (((Glob)patterns.get(id)).matches(key)) hits.set(id);
+                }
+            }
+            for (int id : rest) {
+                if (matches(id, key)) hits.set(id);
+            }
+            return hits;
+        }
+
+        /**
+         * Returns {@code true} if {@code key} matches any of the patterns.
+         * @param key the key
+         * @return {@code true} if any pattern matches
+         */
+        public boolean accept(String key) {
+            return !match(key).isEmpty();
+        }
+
+        /**
+         * Classifies every key of {@code map} in one pass, returning for each
+         * pattern (in the order added) the entries whose keys it matches, in
+         * the iteration order of {@code map}.
+         * @param map the map to classify
+         * @return a list with a map of the hits of each pattern
+         */
+        public <V> List<Map<String,V>> classify(Map<String,V> map) {
+            int size = size();
+            List<Map<String,V>> hits = new ArrayList<Map<String,V>>(size);
+            for (int i=0; i<size; i++) {
+                hits.add(new LinkedHashMap<String,V>());
+            }
+            for (Map.Entry<String,V> e : map.entrySet()) {
+                BitSet matched = match(e.getKey());
+                for (int id=matched.nextSetBit(0); id>=0; id=matched.nextSetBit(id+1)) {
+                    hits.get(id).put(e.getKey(), e.getValue());
+                }
+            }
+            return hits;
         }
     }
 
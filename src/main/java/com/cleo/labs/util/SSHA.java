@@ -4,7 +4,8 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.Base64;
+
+import com.cleo.labs.util.codec.B64;
 
 public class SSHA {
 
@@ -36,7 +37,7 @@ public class SSHA {
     }
 
     public static String hash(String password) {
-        return TAG+Base64.getEncoder().encode(hashbytes(password));
+        return TAG+B64.encode(hashbytes(password));
     }
 
     public static boolean verify(String password, String encoded) {
@@ -45,7 +46,7 @@ public class SSHA {
         }
         byte[] encbytes;
         try {
-            encbytes = Base64.getDecoder().decode(encoded.substring(TAG.length()));
+            encbytes = B64.decode(encoded.substring(TAG.length()));
         } catch (IllegalArgumentException e) {
             return false; // doesn't look base64 encoded
         }
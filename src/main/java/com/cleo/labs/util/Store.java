@@ -0,0 +1,479 @@
+package com.cleo.labs.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cleo.labs.util.F.ClobberMode;
+import com.cleo.labs.util.F.Clobbered;
+
+/**
+ * A content-addressed store, in which each distinct content (blob) is kept
+ * once under its digest, and any number of logical paths refer to it.  A
+ * logical path is a small reference file naming the digest (see {@link #open(File)}),
+ * or with {@link #links(boolean)} a hard link to the blob where the file system
+ * allows it.
+ * <p>
+ * A hard-linked logical path shares its inode with the blob and every other
+ * path linked to it, and file permissions do not protect it from a privileged
+ * writer: an in-place write to it, such as a {@link F#copy(File, File, ClobberMode)}
+ * with {@link ClobberMode#OVERWRITE}, changes the content of every path
+ * referring to the blob.  Use links only where the logical paths are never
+ * written in place, and remove ({@link #release(File)}) a path before
+ * replacing it.
+ * <p>
+ * The blobs are kept read-only in {@code root/blobs/xx/xxxx...} (a two
+ * character fan-out of the hex digest).  The reference count of a blob is the
+ * number of hard links to it beyond its own, plus the reference files recorded
+ * in its {@code .refs} list that still refer to it.  {@link #gc()} removes
+ * blobs that are no longer referenced.
+ */
+public class Store {
+    public static final String BLOBS     = "blobs";
+    public static final String TMP       = "tmp";
+    public static final String REFS      = ".refs";
+    public static final String REFERENCE = "store-ref:";
+
+    /**
+     * A "case" class describing a stored logical path, including:
+     * <ul>
+     * <li>{@code file} the logical path {@link File} (resolved according to the {@link ClobberMode})</li>
+     * <li>{@code blob} the blob {@link File}</li>
+     * <li>{@code hash} the digest of the content</li>
+     * <li>{@code stored} {@code true} if the blob was new and had to be written</li>
+     * <li>{@code matched} {@code true} if the logical path already had the content and was retained</li>
+     * <li>{@code linked} {@code true} if the logical path is a hard link, {@code false} if a reference file</li>
+     * </ul>
+     */
+    public static class Stored {
+        public File    file;
+        public File    blob;
+        public byte[]  hash;
+        public boolean stored;
+        public boolean matched;
+        public boolean linked;
+    }
+
+    /**
+     * A "case" class describing a garbage collection, including the number of
+     * blobs examined and removed and the bytes freed.
+     */
+    public static class Collected {
+        public int  blobs;
+        public int  removed;
+        public long bytes;
+        public String toString() {
+            return String.format("%d of %d blobs removed (%d bytes)", removed, blobs, bytes);
+        }
+    }
+
+    private File    root;
+    private String  alg;
+    private boolean links = false;
+    private Map<File,Integer> pinned = new HashMap<File,Integer>(); // blobs being linked
+
+    /**
+     * Creates a store in directory {@code root} using SHA-256 digests.
+     * @param root the store directory, which is created if needed
+     * @throws IOException if the directory can not be created
+     */
+    public Store(File root) throws IOException {
+        this(root, "SHA-256");
+    }
+
+    /**
+     * Creates a store in directory {@code root} using {@code alg} digests.
+     * @param root the store directory, which is created if needed
+     * @param alg the digest algorithm
+     * @throws IOException if the directory can not be created
+     */
+    public Store(File root, String alg) throws IOException {
+        this.root = root.getAbsoluteFile();
+        this.alg  = alg;
+        for (File dir : new File[] {new File(this.root, BLOBS), new File(this.root, TMP)}) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can not create store directory "+dir);
+            }
+        }
+    }
+
+    /**
+     * Sets whether logical paths are hard linked to their blobs where possible,
+     * or always written as reference files (the default).  See the class
+     * description for the hazard of writing to a hard-linked path.
+     * @param links {@code true} to use hard links
+     * @return this
+     */
+    public Store links(boolean links) {
+        this.links = links;
+        return this;
+    }
+
+    public String alg() {
+        return alg;
+    }
+
+    /**
+     * Returns the blob {@link File} for digest {@code hash}, which may or may not exist.
+     * @param hash the digest
+     * @return the blob {@link File}
+     */
+    public File blob(byte[] hash) {
+        String hex = F.hex(hash);
+        return new File(new File(new File(root, BLOBS), hex.substring(0, 2)), hex);
+    }
+
+    private static File refs(File blob) {
+        return new File(blob.getPath()+REFS);
+    }
+
+    private File temp() throws IOException {
+        return File.createTempFile("blob", ".tmp", new File(root, TMP));
+    }
+
+    /**
+     * Stores the content of {@link File} {@code src} and makes logical path
+     * {@code dst} refer to it, subject to the {@link ClobberMode} policy
+     * {@code mode}.  The content is written only if the store does not already
+     * have it, in which case it is hashed again as it is written, so that the
+     * blob is addressed by the content actually stored even if {@code src}
+     * changes in the meantime.
+     * @param src the source {@link File}
+     * @param dst the logical path
+     * @param mode the {@link ClobberMode} policy for {@code dst}
+     * @return the {@link Stored} result
+     * @throws Exception
+     */
+    public Stored put(File src, File dst, ClobberMode mode) throws Exception {
+        File blob = blob(F.hash(src, alg));
+        if (pin(blob)) {
+            try {
+                return link(blob, false, dst, mode);
+            } finally {
+                unpin(blob);
+            }
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(src);
+            return put(in, dst, mode);
+        } finally {
+            if (in!=null) in.close();
+        }
+    }
+
+    /**
+     * Stores the content read from {@link InputStream} {@code in}, which is
+     * hashed as it is written to the store, and makes logical path {@code dst}
+     * refer to it, subject to the {@link ClobberMode} policy {@code mode}.  The
+     * stream is read to the end but not closed.
+     * @param in the content {@link InputStream}
+     * @param dst the logical path
+     * @param mode the {@link ClobberMode} policy for {@code dst}
+     * @return the {@link Stored} result
+     * @throws Exception
+     */
+    public Stored put(InputStream in, File dst, ClobberMode mode) throws Exception {
+        MessageDigest md  = MessageDigest.getInstance(alg);
+        File          tmp = temp();
+        try {
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(tmp);
+                byte[] buf = new byte[65536];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                    md.update(buf, 0, n);
+                }
+            } finally {
+                if (out!=null) out.close();
+            }
+            File    blob   = blob(md.digest());
+            boolean stored = commit(tmp, blob);
+            try {
+                return link(blob, stored, dst, mode);
+            } finally {
+                unpin(blob);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Pins {@code blob} if it exists, so that {@link #gc()} keeps it until it
+     * is {@link #unpin unpinned}, once the logical path refers to it.
+     * @return {@code true} if the blob exists and was pinned
+     */
+    private synchronized boolean pin(File blob) {
+        if (!blob.isFile()) {
+            return false;
+        }
+        Integer count = pinned.get(blob);
+        pinned.put(blob, count==null ? 1 : count+1);
+        return true;
+    }
+
+    private synchronized void unpin(File blob) {
+        Integer count = pinned.remove(blob);
+        if (count!=null && count>1) {
+            pinned.put(blob, count-1);
+        }
+    }
+
+    /**
+     * Moves a completely written {@code tmp} file into place as {@code blob},
+     * unless a concurrent writer got there first, and pins the blob.
+     * @return {@code true} if {@code tmp} became the blob
+     */
+    private synchronized boolean commit(File tmp, File blob) throws IOException {
+        File dir = blob.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("can not create store directory "+dir);
+        }
+        tmp.setWritable(false, false);
+        boolean stored = !blob.isFile();
+        if (stored) {
+            Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        pin(blob);
+        return stored;
+    }
+
+    private Stored link(File blob, boolean stored, File dst, ClobberMode mode) throws IOException {
+        byte[] hash   = F.hex(blob.getName());
+        Stored result = new Stored();
+        result.blob   = blob;
+        result.hash   = hash;
+        result.stored = stored;
+        dst = dst.getAbsoluteFile();
+        if (Arrays.equals(hash, hash(dst))) {
+            // a reference file to the same blob matches without hashing anything
+            result.file    = dst;
+            result.matched = true;
+            return result;
+        }
+        Clobbered clobbered = F.resolve(dst, mode, alg, hash, blob.length());
+        result.file    = clobbered.file;
+        result.matched = clobbered.matched;
+        if (result.matched) {
+            result.linked = Files.isSameFile(result.file.toPath(), blob.toPath());
+            return result;
+        }
+        File parent = result.file.getParentFile();
+        File tmp    = new File(parent, "."+result.file.getName()+"."+Long.toHexString(System.nanoTime())+".tmp");
+        if (links) {
+            try {
+                Files.createLink(tmp.toPath(), blob.toPath());
+                result.linked = true;
+            } catch (NoSuchFileException e) {
+                throw e; // a missing blob or directory is not a reason to fall back
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // different file system or no hard links: fall back to a reference
+            }
+        }
+        try {
+            if (!result.linked) {
+                F.write(REFERENCE+alg+":"+F.hex(hash)+"\n", tmp, ClobberMode.NONE);
+            }
+            Files.move(tmp.toPath(), result.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        if (!result.linked) {
+            reference(blob, result.file);
+        }
+        return result;
+    }
+
+    private synchronized void reference(File blob, File path) throws IOException {
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(refs(blob), true), StandardCharsets.UTF_8);
+            out.write(path.getPath());
+            out.write('\n');
+        } finally {
+            if (out!=null) out.close();
+        }
+    }
+
+    /**
+     * Returns the digest named by reference file {@code path}, or {@code null}
+     * if it is not a reference file of this store.
+     * @param path the logical path
+     * @return the digest or {@code null}
+     */
+    public byte[] hash(File path) {
+        String prefix = REFERENCE+alg+":";
+        long   length = prefix.length()+2*blobLength()+1;
+        if (!path.isFile() || path.length()!=length) {
+            return null;
+        }
+        try {
+            String ref = new String(F.read(path), StandardCharsets.UTF_8).trim();
+            return ref.startsWith(prefix) ? F.hex(ref.substring(prefix.length())) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private int blobLength() {
+        try {
+            return MessageDigest.getInstance(alg).getDigestLength();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the {@link File} holding the content of logical path {@code path}:
+     * the blob if {@code path} is a reference file, or {@code path} itself
+     * (which may be a hard link to a blob, or an unrelated file).
+     * @param path the logical path
+     * @return the content {@link File}
+     */
+    public File open(File path) {
+        byte[] hash = hash(path);
+        return hash==null ? path : blob(hash);
+    }
+
+    /**
+     * Returns the number of logical paths referring to the blob with digest
+     * {@code hash}, or {@code -1} if the hard link count can not be determined.
+     * @param hash the digest
+     * @return the reference count, or {@code -1}
+     * @throws IOException
+     */
+    public synchronized int refs(byte[] hash) throws IOException {
+        File blob  = blob(hash);
+        if (!blob.isFile()) {
+            return 0;
+        }
+        int links = links(blob);
+        return links<0 ? -1 : links-1+references(blob, hash).size();
+    }
+
+    private static int links(File blob) {
+        try {
+            return ((Number)Files.getAttribute(blob.toPath(), "unix:nlink")).intValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the recorded reference files that still refer to the blob.
+     */
+    private Set<String> references(File blob, byte[] hash) throws IOException {
+        Set<String> live = new LinkedHashSet<String>();
+        File refs = refs(blob);
+        if (refs.isFile()) {
+            for (String path : new String(F.read(refs), StandardCharsets.UTF_8).split("\n")) {
+                if (!path.isEmpty() && Arrays.equals(hash, hash(new File(path)))) {
+                    live.add(path);
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Removes logical path {@code path}, releasing its reference to a blob.
+     * The blob itself is removed by {@link #gc()} once it is unreferenced.
+     * @param path the logical path
+     * @return {@code true} if {@code path} was removed
+     */
+    public boolean release(File path) {
+        return path.delete();
+    }
+
+    /**
+     * Removes the blobs that are no longer referenced by any logical path,
+     * rewrites the reference lists of the remaining blobs, and clears out
+     * abandoned temporary files.  Blobs whose hard link count can not be
+     * determined, and blobs a concurrent {@code put} is linking to, are kept.
+     * @return the {@link Collected} result
+     * @throws IOException
+     */
+    public synchronized Collected gc() throws IOException {
+        Collected result = new Collected();
+        File[]    fans   = new File(root, BLOBS).listFiles();
+        for (File fan : fans==null ? new File[0] : fans) {
+            File[] blobs = fan.listFiles();
+            for (File blob : blobs==null ? new File[0] : blobs) {
+                if (blob.getName().endsWith(REFS)) {
+                    continue;
+                }
+                result.blobs++;
+                if (pinned.containsKey(blob)) {
+                    continue;
+                }
+                byte[]      hash  = F.hex(blob.getName());
+                int         links = links(blob);
+                Set<String> live  = hash==null ? new LinkedHashSet<String>() : references(blob, hash);
+                if (links==1 && live.isEmpty()) {
+                    long size = blob.length();
+                    if (blob.delete()) {
+                        refs(blob).delete();
+                        result.removed++;
+                        result.bytes += size;
+                    }
+                } else if (refs(blob).isFile()) {
+                    rewrite(refs(blob), live);
+                }
+            }
+            String[] left = fan.list();
+            if (left!=null && left.length==0) {
+                fan.delete();
+            }
+        }
+        long   stale = System.currentTimeMillis()-24*60*60*1000L;
+        File[] tmps  = new File(root, TMP).listFiles();
+        for (File tmp : tmps==null ? new File[0] : tmps) {
+            if (tmp.lastModified()<stale) {
+                tmp.delete();
+            }
+        }
+        return result;
+    }
+
+    private static void rewrite(File refs, Set<String> live) throws IOException {
+        if (live.isEmpty()) {
+            refs.delete();
+            return;
+        }
+        List<String> paths = new ArrayList<String>(live);
+        File   tmp = new File(refs.getPath()+".tmp");
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+            for (String path : paths) {
+                out.write(path);
+                out.write('\n');
+            }
+        } finally {
+            if (out!=null) out.close();
+        }
+        Files.move(tmp.toPath(), refs.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
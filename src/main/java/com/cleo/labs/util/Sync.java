@@ -0,0 +1,362 @@
+package com.cleo.labs.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.cleo.labs.util.F.ClobberMode;
+import com.cleo.labs.util.F.Clobbered;
+
+/**
+ * Mirrors a source directory tree into a destination tree.  Each directory is
+ * listed once (source and destination), subdirectories are walked in parallel
+ * on a fork-join pool, and the files of a directory are compared and copied
+ * in batches on the same pool.
+ * <p>
+ * A destination file with the same size and modification time as its source
+ * is taken to match without being read.  Otherwise the decision is made by
+ * {@link F#copy(File, File, ClobberMode, Copier)}: files of the same size are
+ * compared by hash, and a differing file is handled according to the
+ * {@link ClobberMode} (where {@link ClobberMode#NONE} skips it).  Modification
+ * times are copied to the destination, so the next sync of an unchanged tree
+ * is decided from the file attributes alone.  Destination files with no
+ * source are left in place.  Symbolic links in the source are followed, but a
+ * link back to an enclosing directory is recorded as a failure rather than
+ * walked again.
+ */
+public class Sync {
+    public static final int BATCH = 64;
+
+    /**
+     * A "case" class describing a file that could not be synced.
+     */
+    public static class Failure {
+        public File      src;
+        public File      dst;
+        public Exception error;
+        public Failure (File src, File dst, Exception error) {
+            this.src   = src;
+            this.dst   = dst;
+            this.error = error;
+        }
+        public String toString() {
+            return src+" -> "+dst+": "+error;
+        }
+    }
+
+    /**
+     * A "case" class describing a sync, including:
+     * <ul>
+     * <li>{@code copied} the number of files copied</li>
+     * <li>{@code matched} the number of existing files that matched and were retained</li>
+     * <li>{@code skipped} the number of differing files left alone under {@link ClobberMode#NONE}</li>
+     * <li>{@code failed} the number of files that failed, described in {@code failures}</li>
+     * <li>{@code directories} the number of directories walked</li>
+     * <li>{@code bytes} the number of bytes copied</li>
+     * <li>{@code scanNanos}, {@code compareNanos} and {@code copyNanos} the time spent
+     *     listing, comparing and copying, summed over all worker threads</li>
+     * <li>{@code nanos} the elapsed time</li>
+     * </ul>
+     */
+    public static class Report {
+        public long          copied;
+        public long          matched;
+        public long          skipped;
+        public long          failed;
+        public long          directories;
+        public long          bytes;
+        public long          scanNanos;
+        public long          compareNanos;
+        public long          copyNanos;
+        public long          nanos;
+        public List<Failure> failures;
+        public String toString() {
+            return String.format("%d copied (%d bytes), %d matched, %d skipped, %d failed in %d directories"+
+                                 " in %.1f ms (scan %.1f ms, compare %.1f ms, copy %.1f ms)",
+                                 copied, bytes, matched, skipped, failed, directories,
+                                 nanos/1e6, scanNanos/1e6, compareNanos/1e6, copyNanos/1e6);
+        }
+    }
+
+    private ClobberMode  mode     = ClobberMode.OVERWRITE;
+    private boolean      hash     = true;
+    private boolean      preserve = true;
+    private Copier       copier   = new Copier();
+    private ForkJoinPool pool     = ForkJoinPool.commonPool();
+
+    /**
+     * Sets the {@link ClobberMode} applied to differing files (default {@link ClobberMode#OVERWRITE}).
+     * @param mode the {@link ClobberMode}
+     * @return this
+     */
+    public Sync mode(ClobberMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * Sets whether existing files of the same size but a different modification
+     * time are compared by hash (the default), or simply treated as different.
+     * @param hash {@code true} to compare by hash
+     * @return this
+     */
+    public Sync hash(boolean hash) {
+        this.hash = hash;
+        return this;
+    }
+
+    /**
+     * Sets whether source modification times are copied to the destination (default {@code true}).
+     * @param preserve {@code true} to preserve modification times
+     * @return this
+     */
+    public Sync preserve(boolean preserve) {
+        this.preserve = preserve;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Copier} used for the file copies (by default without checkpoints).
+     * @param copier the {@link Copier}
+     * @return this
+     */
+    public Sync copier(Copier copier) {
+        this.copier = copier;
+        return this;
+    }
+
+    /**
+     * Sets the {@link ForkJoinPool} on which the trees are walked (default the common pool).
+     * Since the work is I/O bound, a dedicated pool with more threads than cores
+     * may help on network file systems.
+     * @param pool the {@link ForkJoinPool}
+     * @return this
+     */
+    public Sync pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * The running totals of a sync in progress.
+     */
+    private static class Totals {
+        private LongAdder copied       = new LongAdder();
+        private LongAdder matched      = new LongAdder();
+        private LongAdder skipped      = new LongAdder();
+        private LongAdder directories  = new LongAdder();
+        private LongAdder bytes        = new LongAdder();
+        private LongAdder scanNanos    = new LongAdder();
+        private LongAdder compareNanos = new LongAdder();
+        private LongAdder copyNanos    = new LongAdder();
+        private ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<Failure>();
+    }
+
+    /**
+     * Syncs the tree rooted at directory {@code src} into directory {@code dst},
+     * which is created if needed.  A failure to sync a file or directory is
+     * recorded in the {@link Report} and does not stop the rest of the sync.
+     * @param src the source directory
+     * @param dst the destination directory
+     * @return the {@link Report}
+     * @throws IOException if {@code src} is not a directory
+     */
+    public Report sync(File src, File dst) throws IOException {
+        if (!src.isDirectory()) {
+            throw new IOException("sync source must be a directory");
+        }
+        long   start  = System.nanoTime();
+        Totals totals = new Totals();
+        pool.invoke(new Dir(src, dst, totals, Collections.<Object>emptySet()));
+        Report report = new Report();
+        report.copied       = totals.copied.sum();
+        report.matched      = totals.matched.sum();
+        report.skipped      = totals.skipped.sum();
+        report.directories  = totals.directories.sum();
+        report.bytes        = totals.bytes.sum();
+        report.scanNanos    = totals.scanNanos.sum();
+        report.compareNanos = totals.compareNanos.sum();
+        report.copyNanos    = totals.copyNanos.sum();
+        report.failures     = new ArrayList<Failure>(totals.failures);
+        report.failed       = report.failures.size();
+        report.nanos        = System.nanoTime()-start;
+        return report;
+    }
+
+    /**
+     * Returns a key identifying directory {@code dir}: its file key (inode),
+     * or its canonical path where the file system has no file keys.
+     */
+    private static Object key(File dir) throws IOException {
+        Object key = Files.readAttributes(dir.toPath(), BasicFileAttributes.class).fileKey();
+        return key!=null ? key : dir.getCanonicalPath();
+    }
+
+    /**
+     * Lists a source directory and its destination, and forks the
+     * subdirectories and batches of files.  The keys of the enclosing source
+     * directories are passed down to detect symbolic link cycles.
+     */
+    private class Dir extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private File        src;
+        private File        dst;
+        private Totals      totals;
+        private Set<Object> ancestors;
+        public Dir(File src, File dst, Totals totals, Set<Object> ancestors) {
+            this.src       = src;
+            this.dst       = dst;
+            this.totals    = totals;
+            this.ancestors = ancestors;
+        }
+        @Override
+        protected void compute() {
+            long begin = System.nanoTime();
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            long mtime;
+            try {
+                Object key = key(src);
+                if (ancestors.contains(key)) {
+                    throw new IOException("directory cycle at "+src);
+                }
+                Set<Object> enclosing = new HashSet<Object>(ancestors);
+                enclosing.add(key);
+                mtime = src.lastModified();
+                String[] names = src.list();
+                if (names==null) {
+                    throw new IOException("can not list directory "+src);
+                }
+                if (!dst.isDirectory() && !dst.mkdirs()) {
+                    throw new IOException("can not create directory "+dst);
+                }
+                String[]    listed   = dst.list();
+                Set<String> existing = listed==null ? Collections.<String>emptySet()
+                                                    : new HashSet<String>(Arrays.asList(listed));
+                List<String>              files = new ArrayList<String>();
+                List<BasicFileAttributes> attrs = new ArrayList<BasicFileAttributes>();
+                for (String name : names) {
+                    File f = new File(src, name);
+                    BasicFileAttributes a;
+                    try {
+                        a = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        totals.failures.add(new Failure(f, new File(dst, name), e));
+                        continue;
+                    }
+                    if (a.isDirectory()) {
+                        tasks.add(new Dir(f, new File(dst, name), totals, enclosing));
+                    } else if (a.isRegularFile()) {
+                        files.add(name);
+                        attrs.add(existing.contains(name) ? a : null);
+                        if (files.size()==BATCH) {
+                            tasks.add(new Batch(src, dst, files, attrs, totals));
+                            files = new ArrayList<String>();
+                            attrs = new ArrayList<BasicFileAttributes>();
+                        }
+                    }
+                }
+                if (!files.isEmpty()) {
+                    tasks.add(new Batch(src, dst, files, attrs, totals));
+                }
+            } catch (IOException e) {
+                totals.failures.add(new Failure(src, dst, e));
+                return;
+            } finally {
+                totals.scanNanos.add(System.nanoTime()-begin);
+            }
+            totals.directories.increment();
+            invokeAll(tasks);
+            if (preserve) {
+                dst.setLastModified(mtime);
+            }
+        }
+    }
+
+    /**
+     * Compares and copies a batch of files from one directory.  The source
+     * attributes are included only for files that already exist in the
+     * destination.
+     */
+    private class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private File                      src;
+        private File                      dst;
+        private List<String>              names;
+        private List<BasicFileAttributes> attrs;
+        private Totals                    totals;
+        public Batch(File src, File dst, List<String> names, List<BasicFileAttributes> attrs, Totals totals) {
+            this.src    = src;
+            this.dst    = dst;
+            this.names  = names;
+            this.attrs  = attrs;
+            this.totals = totals;
+        }
+        @Override
+        protected void compute() {
+            for (int i=0; i<names.size(); i++) {
+                File s = new File(src, names.get(i));
+                File d = new File(dst, names.get(i));
+                try {
+                    sync(s, d, attrs.get(i));
+                } catch (Exception e) {
+                    totals.failures.add(new Failure(s, d, e));
+                }
+            }
+        }
+        private void sync(File s, File d, BasicFileAttributes a) throws Exception {
+            long begin = System.nanoTime();
+            Clobbered result;
+            if (a==null) {
+                copier.copy(s, d);
+                result = new Clobbered(d, false);
+            } else {
+                BasicFileAttributes b = Files.readAttributes(d.toPath(), BasicFileAttributes.class);
+                if (!b.isRegularFile()) {
+                    throw new IOException("sync destination is not a file");
+                }
+                if (a.size()==b.size() && a.lastModifiedTime().toMillis()==b.lastModifiedTime().toMillis()) {
+                    totals.matched.increment();
+                    totals.compareNanos.add(System.nanoTime()-begin);
+                    return;
+                }
+                if (mode==ClobberMode.NONE) {
+                    // never clobber: the file is in sync only if the content matches
+                    result = hash && a.size()==b.size() && Arrays.equals(F.md5(s), F.md5(d)) ? new Clobbered(d, true) : null;
+                } else if (hash || mode==ClobberMode.UNIQUE) {
+                    result = F.copy(s, d, mode, copier);
+                } else {
+                    copier.copy(s, d);
+                    result = new Clobbered(d, false);
+                }
+                if (result==null) {
+                    totals.skipped.increment();
+                    totals.compareNanos.add(System.nanoTime()-begin);
+                    return;
+                }
+            }
+            if (result.matched) {
+                totals.matched.increment();
+                totals.compareNanos.add(System.nanoTime()-begin);
+            } else {
+                totals.copied.increment();
+                totals.bytes.add(s.length());
+                totals.copyNanos.add(System.nanoTime()-begin);
+            }
+            if (preserve) {
+                result.file.setLastModified(s.lastModified());
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.cleo.labs.util.codec;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Table-driven Base64 encoding and strict decoding in the standard RFC 4648
+ * alphabet with padding.  The decoder rejects characters outside the
+ * alphabet (including line breaks), a length that is not a multiple of four,
+ * misplaced padding and non-zero trailing bits, so that every encoded form
+ * is canonical.
+ * <p>
+ * As for {@link Hex}, every operation can work into a caller-supplied
+ * {@code char[]}, {@code byte[]} or {@link ByteBuffer} (where the encoded form
+ * is ASCII bytes) without allocating, and {@link #encoder(OutputStream)} and
+ * {@link #decoder(InputStream)} wrap streams.
+ */
+public class B64 {
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] VALUES   = new byte[128];
+    private static final char   PAD      = '=';
+    static {
+        java.util.Arrays.fill(VALUES, (byte)-1);
+        for (int i=0; i<64; i++) {
+            VALUES[ALPHABET[i]] = (byte)i;
+        }
+    }
+
+    private static int value(int c, int index) {
+        int v = c<128 ? VALUES[c] : -1;
+        if (v<0) {
+            throw new IllegalArgumentException("invalid base64 character at "+index);
+        }
+        return v;
+    }
+
+    /**
+     * Returns the encoded length of {@code n} bytes, including padding.
+     * @param n the number of bytes
+     * @return the number of Base64 characters
+     */
+    public static int encoded(int n) {
+        return (n+2)/3*4;
+    }
+
+    /**
+     * Returns the decoded length of {@code len} Base64 characters of {@code src}
+     * from {@code off}, accounting for padding.
+     * @param src the Base64 characters
+     * @param off the offset in {@code src}
+     * @param len the number of characters
+     * @return the number of bytes they decode to
+     * @throws IllegalArgumentException if {@code len} is not a multiple of four
+     */
+    public static int decoded(CharSequence src, int off, int len) {
+        if (len%4!=0) {
+            throw new IllegalArgumentException("base64 length is not a multiple of 4");
+        }
+        int n = len/4*3;
+        if (len>0 && src.charAt(off+len-1)==PAD) n--;
+        if (len>0 && src.charAt(off+len-2)==PAD) n--;
+        return n;
+    }
+
+    /**
+     * Encodes {@code bytes} as a padded Base64 {@link String}.
+     * @param bytes the bytes to encode
+     * @return the Base64 {@link String}
+     */
+    public static String encode(byte[] bytes) {
+        char[] chars = new char[encoded(bytes.length)];
+        encode(bytes, 0, bytes.length, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Encodes {@code len} bytes of {@code src} from {@code off} into {@code dst} from {@code pos}.
+     * @param src the bytes to encode
+     * @param off the offset in {@code src}
+     * @param len the number of bytes to encode
+     * @param dst the destination
+     * @param pos the offset in {@code dst}
+     * @return the number of chars written
+     */
+    public static int encode(byte[] src, int off, int len, char[] dst, int pos) {
+        int end  = off+len;
+        int full = off+len/3*3;
+        int i    = off;
+        while (i<full) {
+            int bits = (src[i++]&0xff)<<16 | (src[i++]&0xff)<<8 | (src[i++]&0xff);
+            dst[pos++] = ALPHABET[bits>>>18];
+            dst[pos++] = ALPHABET[bits>>>12&0x3f];
+            dst[pos++] = ALPHABET[bits>>>6&0x3f];
+            dst[pos++] = ALPHABET[bits&0x3f];
+        }
+        if (i<end) {
+            int bits = (src[i]&0xff)<<16 | (i+1<end ? (src[i+1]&0xff)<<8 : 0);
+            dst[pos++] = ALPHABET[bits>>>18];
+            dst[pos++] = ALPHABET[bits>>>12&0x3f];
+            dst[pos++] = i+1<end ? ALPHABET[bits>>>6&0x3f] : PAD;
+            dst[pos++] = PAD;
+        }
+        return encoded(len);
+    }
+
+    /**
+     * Encodes the remaining bytes of {@code src} into {@code dst} as ASCII,
+     * with padding, advancing the positions of both.
+     * @param src the bytes to encode
+     * @param dst the destination
+     * @return the number of bytes written
+     * @throws BufferOverflowException if {@code dst} has insufficient space
+     */
+    public static int encode(ByteBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+        int n   = encoded(len);
+        if (dst.remaining()<n) {
+            throw new BufferOverflowException();
+        }
+        for (int i=len/3; i>0; i--) {
+            int bits = (src.get()&0xff)<<16 | (src.get()&0xff)<<8 | (src.get()&0xff);
+            dst.put((byte)ALPHABET[bits>>>18]);
+            dst.put((byte)ALPHABET[bits>>>12&0x3f]);
+            dst.put((byte)ALPHABET[bits>>>6&0x3f]);
+            dst.put((byte)ALPHABET[bits&0x3f]);
+        }
+        if (src.hasRemaining()) {
+            boolean two  = src.remaining()==2;
+            int     bits = (src.get()&0xff)<<16 | (two ? (src.get()&0xff)<<8 : 0);
+            dst.put((byte)ALPHABET[bits>>>18]);
+            dst.put((byte)ALPHABET[bits>>>12&0x3f]);
+            dst.put((byte)(two ? ALPHABET[bits>>>6&0x3f] : PAD));
+            dst.put((byte)PAD);
+        }
+        return n;
+    }
+
+    /**
+     * Decodes Base64 {@code s}.
+     * @param s the Base64 characters
+     * @return the decoded bytes
+     * @throws IllegalArgumentException if {@code s} is not strictly Base64
+     */
+    public static byte[] decode(CharSequence s) {
+        byte[] bytes = new byte[decoded(s, 0, s.length())];
+        decode(s, 0, s.length(), bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Decodes {@code len} Base64 characters of {@code src} from {@code off} into
+     * {@code dst} from {@code pos}.  If {@code dst} is {@code null} the
+     * characters are only validated.
+     * @param src the Base64 characters
+     * @param off the offset in {@code src}
+     * @param len the number of characters to decode
+     * @param dst the destination (or {@code null})
+     * @param pos the offset in {@code dst}
+     * @return the number of bytes decoded
+     * @throws IllegalArgumentException if the characters are not strictly Base64
+     */
+    public static int decode(CharSequence src, int off, int len, byte[] dst, int pos) {
+        int n   = decoded(src, off, len);
+        int end = off+len;
+        for (int i=off; i<end; i+=4) {
+            boolean last = i+4==end;
+            int c2 = src.charAt(i+2);
+            int c3 = src.charAt(i+3);
+            int bits = value(src.charAt(i), i)<<18 | value(src.charAt(i+1), i+1)<<12;
+            if (last && c3==PAD) {
+                if (c2==PAD) {
+                    check(bits, 0xffff, i);
+                    if (dst!=null) dst[pos] = (byte)(bits>>>16);
+                } else {
+                    bits |= value(c2, i+2)<<6;
+                    check(bits, 0xff, i);
+                    if (dst!=null) {
+                        dst[pos]   = (byte)(bits>>>16);
+                        dst[pos+1] = (byte)(bits>>>8);
+                    }
+                }
+            } else {
+                bits |= value(c2, i+2)<<6 | value(c3, i+3);
+                if (dst!=null) {
+                    dst[pos]   = (byte)(bits>>>16);
+                    dst[pos+1] = (byte)(bits>>>8);
+                    dst[pos+2] = (byte)bits;
+                }
+                pos += 3;
+            }
+        }
+        return n;
+    }
+
+    private static void check(int bits, int mask, int index) {
+        if ((bits&mask)!=0) {
+            throw new IllegalArgumentException("non-canonical base64 padding at "+index);
+        }
+    }
+
+    /**
+     * Decodes the remaining ASCII Base64 characters of {@code src} into
+     * {@code dst}, advancing the positions of both.
+     * @param src the Base64 characters
+     * @param dst the destination
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if the characters are not strictly Base64
+     * @throws BufferOverflowException if {@code dst} has insufficient space
+     */
+    public static int decode(ByteBuffer src, ByteBuffer dst) {
+        CharSequence chars = ascii(src);
+        int n = decoded(chars, 0, chars.length());
+        if (dst.remaining()<n) {
+            throw new BufferOverflowException();
+        }
+        if (dst.hasArray()) {
+            decode(chars, 0, chars.length(), dst.array(), dst.arrayOffset()+dst.position());
+            dst.position(dst.position()+n);
+        } else {
+            byte[] quantum = new byte[3];
+            for (int i=0; i<chars.length(); i+=4) {
+                dst.put(quantum, 0, decode(chars, i, 4, quantum, 0));
+                if (i+4<chars.length() && chars.charAt(i+3)==PAD) {
+                    throw new IllegalArgumentException("base64 padding before end at "+(i+3));
+                }
+            }
+        }
+        src.position(src.limit());
+        return n;
+    }
+
+    /**
+     * Returns a view of the remaining bytes of {@code src} as ASCII characters.
+     */
+    static CharSequence ascii(ByteBuffer src) {
+        return ascii(src, src.position(), src.remaining());
+    }
+
+    private static CharSequence ascii(final ByteBuffer src, final int start, final int len) {
+        return new CharSequence() {
+            public int length() {
+                return len;
+            }
+            public char charAt(int index) {
+                if (index<0 || index>=len) {
+                    throw new IndexOutOfBoundsException("index "+index+" of "+len);
+                }
+                return (char)(src.get(start+index)&0xff);
+            }
+            public CharSequence subSequence(int from, int to) {
+                if (from<0 || to>len || from>to) {
+                    throw new IndexOutOfBoundsException("range ["+from+", "+to+") of "+len);
+                }
+                return ascii(src, start+from, to-from);
+            }
+            public String toString() {
+                char[] chars = new char[len];
+                for (int i=0; i<len; i++) {
+                    chars[i] = (char)(src.get(start+i)&0xff);
+                }
+                return new String(chars);
+            }
+        };
+    }
+
+    /**
+     * Returns {@code true} if {@code s} is strictly Base64.
+     * @param s the {@link CharSequence} to check (may be {@code null})
+     * @return {@code true} if {@code s} can be decoded
+     */
+    public static boolean valid(CharSequence s) {
+        if (s==null) return false;
+        try {
+            decode(s, 0, s.length(), null, 0);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns an {@link OutputStream} that writes the bytes written to it to
+     * {@code out} as ASCII Base64.  The final padded quantum is written when
+     * the stream is closed, which also closes {@code out}.
+     * @param out the {@link OutputStream} to receive the Base64
+     * @return the encoding {@link OutputStream}
+     */
+    public static OutputStream encoder(OutputStream out) {
+        return new FilterOutputStream(out) {
+            private byte[]  buf    = new byte[8192];
+            private byte[]  carry  = new byte[3];
+            private int     held   = 0;
+            private boolean closed = false;
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (held>0 && held<3 && len>0) {
+                    carry[held++] = b[off++];
+                    len--;
+                }
+                if (held==3) {
+                    encode(ByteBuffer.wrap(carry), ByteBuffer.wrap(buf));
+                    out.write(buf, 0, 4);
+                    held = 0;
+                }
+                while (len>=3) {
+                    int n = Math.min(len/3, buf.length/4)*3;
+                    out.write(buf, 0, encode(ByteBuffer.wrap(b, off, n), ByteBuffer.wrap(buf)));
+                    off += n;
+                    len -= n;
+                }
+                while (len>0) {
+                    carry[held++] = b[off++];
+                    len--;
+                }
+            }
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                if (held>0) {
+                    out.write(buf, 0, encode(ByteBuffer.wrap(carry, 0, held), ByteBuffer.wrap(buf)));
+                    held = 0;
+                }
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * Returns an {@link InputStream} that decodes the ASCII Base64 read from
+     * {@code in}.  Invalid or truncated input, or input after the padding, is
+     * reported as an {@link IOException}.  Closing it closes {@code in}.
+     * @param in the {@link InputStream} of Base64
+     * @return the decoding {@link InputStream}
+     */
+    public static InputStream decoder(InputStream in) {
+        return new FilterInputStream(in) {
+            private byte[]  buf    = new byte[8192];
+            private byte[]  out    = new byte[6144];
+            private int     next   = 0;
+            private int     limit  = 0;
+            private long    index  = 0;
+            private boolean padded = false;
+            @Override
+            public int read() throws IOException {
+                if (!fill()) return -1;
+                return out[next++]&0xff;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len==0) return 0;
+                if (!fill()) return -1;
+                int n = Math.min(len, limit-next);
+                System.arraycopy(out, next, b, off, n);
+                next += n;
+                return n;
+            }
+            private boolean fill() throws IOException {
+                if (next<limit) return true;
+                int n = 0;
+                while (n==0 || n%4!=0) {
+                    int r = in.read(buf, n, buf.length-n);
+                    if (r<0) {
+                        if (n%4!=0) throw new IOException("truncated base64 input");
+                        break;
+                    }
+                    n += r;
+                }
+                if (n==0) return false;
+                if (padded) {
+                    throw new IOException("base64 input continues after padding");
+                }
+                ByteBuffer src = ByteBuffer.wrap(buf, 0, n);
+                try {
+                    next   = 0;
+                    limit  = decode(src, ByteBuffer.wrap(out));
+                    padded = buf[n-1]==PAD;
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("invalid base64 input near offset "+index, e);
+                }
+                index += n;
+                return limit>0 || fill();
+            }
+            @Override
+            public int available() throws IOException {
+                return limit-next;
+            }
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    private B64() { }
+}
@@ -0,0 +1,266 @@
+package com.cleo.labs.util.codec;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Table-driven hexadecimal encoding and strict decoding.  The encoder
+ * produces lower case digits; the decoder accepts either case and rejects
+ * anything else, including an odd number of digits.
+ * <p>
+ * Besides the {@link String} conveniences, every operation can work into a
+ * caller-supplied {@code char[]}, {@code byte[]} or {@link ByteBuffer} (where
+ * the encoded form is ASCII bytes) without allocating, and
+ * {@link #encoder(OutputStream)} and {@link #decoder(InputStream)} wrap
+ * streams.
+ */
+public class Hex {
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+    static {
+        java.util.Arrays.fill(VALUES, (byte)-1);
+        for (int i=0; i<16; i++) {
+            VALUES[DIGITS[i]] = (byte)i;
+            VALUES[Character.toUpperCase(DIGITS[i])] = (byte)i;
+        }
+    }
+
+    private static int value(int c, int index) {
+        int v = c<128 ? VALUES[c] : -1;
+        if (v<0) {
+            throw new IllegalArgumentException("invalid hex character at "+index);
+        }
+        return v;
+    }
+
+    /**
+     * Returns the encoded length of {@code n} bytes.
+     * @param n the number of bytes
+     * @return the number of hex digits
+     */
+    public static int encoded(int n) {
+        return 2*n;
+    }
+
+    /**
+     * Encodes {@code bytes} as a lower case hexadecimal {@link String}.
+     * @param bytes the bytes to encode
+     * @return the hexadecimal {@link String}
+     */
+    public static String encode(byte[] bytes) {
+        char[] chars = new char[encoded(bytes.length)];
+        encode(bytes, 0, bytes.length, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Encodes {@code len} bytes of {@code src} from {@code off} into {@code dst} from {@code pos}.
+     * @param src the bytes to encode
+     * @param off the offset in {@code src}
+     * @param len the number of bytes to encode
+     * @param dst the destination
+     * @param pos the offset in {@code dst}
+     * @return the number of chars written
+     */
+    public static int encode(byte[] src, int off, int len, char[] dst, int pos) {
+        for (int i=off; i<off+len; i++) {
+            int b = src[i]&0xff;
+            dst[pos++] = DIGITS[b>>>4];
+            dst[pos++] = DIGITS[b&0xf];
+        }
+        return encoded(len);
+    }
+
+    /**
+     * Encodes the remaining bytes of {@code src} into {@code dst} as ASCII digits,
+     * advancing the positions of both.
+     * @param src the bytes to encode
+     * @param dst the destination
+     * @return the number of bytes written
+     * @throws BufferOverflowException if {@code dst} has insufficient space
+     */
+    public static int encode(ByteBuffer src, ByteBuffer dst) {
+        int n = encoded(src.remaining());
+        if (dst.remaining()<n) {
+            throw new BufferOverflowException();
+        }
+        while (src.hasRemaining()) {
+            int b = src.get()&0xff;
+            dst.put((byte)DIGITS[b>>>4]);
+            dst.put((byte)DIGITS[b&0xf]);
+        }
+        return n;
+    }
+
+    /**
+     * Decodes hexadecimal {@code s}.
+     * @param s the hex digits
+     * @return the decoded bytes
+     * @throws IllegalArgumentException if {@code s} is not strictly hexadecimal
+     */
+    public static byte[] decode(CharSequence s) {
+        if (s.length()%2!=0) {
+            throw new IllegalArgumentException("odd number of hex digits");
+        }
+        byte[] bytes = new byte[s.length()/2];
+        decode(s, 0, s.length(), bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Decodes {@code len} hex digits of {@code src} from {@code off} into
+     * {@code dst} from {@code pos}.  If {@code dst} is {@code null} the digits
+     * are only validated.
+     * @param src the hex digits
+     * @param off the offset in {@code src}
+     * @param len the number of digits to decode
+     * @param dst the destination (or {@code null})
+     * @param pos the offset in {@code dst}
+     * @return the number of bytes decoded
+     * @throws IllegalArgumentException if the digits are not strictly hexadecimal
+     */
+    public static int decode(CharSequence src, int off, int len, byte[] dst, int pos) {
+        if (len%2!=0) {
+            throw new IllegalArgumentException("odd number of hex digits");
+        }
+        for (int i=off; i<off+len; i+=2) {
+            int b = value(src.charAt(i), i)<<4 | value(src.charAt(i+1), i+1);
+            if (dst!=null) dst[pos++] = (byte)b;
+        }
+        return len/2;
+    }
+
+    /**
+     * Decodes the remaining ASCII hex digits of {@code src} into {@code dst},
+     * advancing the positions of both.
+     * @param src the hex digits
+     * @param dst the destination
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if the digits are not strictly hexadecimal
+     * @throws BufferOverflowException if {@code dst} has insufficient space
+     */
+    public static int decode(ByteBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+        if (len%2!=0) {
+            throw new IllegalArgumentException("odd number of hex digits");
+        }
+        if (dst.remaining()<len/2) {
+            throw new BufferOverflowException();
+        }
+        int start = src.position();
+        for (int i=start; i<start+len; i+=2) {
+            dst.put((byte)(value(src.get(i)&0xff, i-start)<<4 | value(src.get(i+1)&0xff, i+1-start)));
+        }
+        src.position(start+len);
+        return len/2;
+    }
+
+    /**
+     * Returns {@code true} if {@code s} is strictly hexadecimal (an even
+     * number of digits of either case).
+     * @param s the {@link CharSequence} to check (may be {@code null})
+     * @return {@code true} if {@code s} can be decoded
+     */
+    public static boolean valid(CharSequence s) {
+        if (s==null) return false;
+        try {
+            decode(s, 0, s.length(), null, 0);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns an {@link OutputStream} that writes the bytes written to it to
+     * {@code out} as ASCII hex digits.  Closing it closes {@code out}.
+     * @param out the {@link OutputStream} to receive the digits
+     * @return the encoding {@link OutputStream}
+     */
+    public static OutputStream encoder(OutputStream out) {
+        return new FilterOutputStream(out) {
+            private byte[] buf = new byte[8192];
+            @Override
+            public void write(int b) throws IOException {
+                out.write(DIGITS[(b&0xff)>>>4]);
+                out.write(DIGITS[b&0xf]);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len>0) {
+                    int n = Math.min(len, buf.length/2);
+                    encode(ByteBuffer.wrap(b, off, n), ByteBuffer.wrap(buf));
+                    out.write(buf, 0, 2*n);
+                    off += n;
+                    len -= n;
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns an {@link InputStream} that decodes the ASCII hex digits read
+     * from {@code in}.  Invalid or truncated input is reported as an
+     * {@link IOException}.  Closing it closes {@code in}.
+     * @param in the {@link InputStream} of hex digits
+     * @return the decoding {@link InputStream}
+     */
+    public static InputStream decoder(InputStream in) {
+        return new FilterInputStream(in) {
+            private byte[] buf   = new byte[8192];
+            private long   index = 0;
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1)<0 ? -1 : b[0]&0xff;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len==0) return 0;
+                int want = Math.min(2*len, buf.length);
+                int n    = 0;
+                while (n<2) {
+                    int r = in.read(buf, n, want-n);
+                    if (r<0) break;
+                    n += r;
+                }
+                if (n==0) return -1;
+                if (n%2!=0) {
+                    int r = in.read(buf, n, 1);
+                    if (r<0) throw new IOException("truncated hex input");
+                    n++;
+                }
+                try {
+                    for (int i=0; i<n; i+=2) {
+                        b[off+i/2] = (byte)(value(buf[i]&0xff, i)<<4 | value(buf[i+1]&0xff, i+1));
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("invalid hex input near offset "+index, e);
+                }
+                index += n;
+                return n/2;
+            }
+            @Override
+            public long skip(long n) throws IOException {
+                byte[] b = new byte[(int)Math.min(Math.max(n, 0), 4096)];
+                int r = read(b, 0, b.length);
+                return Math.max(r, 0);
+            }
+            @Override
+            public int available() throws IOException {
+                return in.available()/2;
+            }
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    private Hex() { }
+}
@@ -0,0 +1,830 @@
+package com.cleo.labs.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class FTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * A local HTTP stand-in serving fixed content with an {@code ETag},
+     * {@code If-None-Match} and {@code Range} support, optionally stalling the next response after
+     * {@code cut} bytes.
+     */
+    private static class Server implements HttpHandler {
+        public byte[]       content;
+        public String       etag    = "\"v1\"";
+        public boolean      ranges  = true;
+        public int          cut     = -1;
+        public int          skew    = 0;
+        public CountDownLatch gate  = null; // requests wait for it
+        public CountDownLatch opens = null; // requests count it down
+        public List<String> range   = Collections.synchronizedList(new ArrayList<String>());
+        private HttpServer  server;
+
+        public Server(byte[] content) throws IOException {
+            this.content = content;
+            this.server  = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+        }
+        public String url(String path) {
+            return "http://127.0.0.1:"+server.getAddress().getPort()+path;
+        }
+        public void stop() {
+            server.stop(0);
+        }
+        public void handle(HttpExchange x) throws IOException {
+            if (opens!=null) opens.countDown();
+            try {
+                if (gate!=null) gate.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            String requested = x.getRequestHeaders().getFirst("Range");
+            String ifRange   = x.getRequestHeaders().getFirst("If-Range");
+            range.add(String.valueOf(requested));
+            x.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(x.getRequestHeaders().getFirst("If-None-Match"))) {
+                x.sendResponseHeaders(304, -1);
+                x.close();
+                return;
+            }
+            if (ranges) {
+                x.getResponseHeaders().set("Accept-Ranges", "bytes");
+            }
+            int code  = 200;
+            int start = 0;
+            int end   = content.length;
+            if (ranges && requested!=null && (ifRange==null || ifRange.equals(etag))) {
+                String[] se = requested.substring("bytes=".length()).split("-", -1);
+                start = Integer.parseInt(se[0])-skew;
+                end   = se[1].isEmpty() ? content.length : Integer.parseInt(se[1])+1;
+                code  = 206;
+                x.getResponseHeaders().set("Content-Range", "bytes "+start+"-"+(end-1)+"/"+content.length);
+            }
+            if (x.getRequestMethod().equals("HEAD")) {
+                x.getResponseHeaders().set("Content-Length", String.valueOf(end-start));
+                x.sendResponseHeaders(code, -1);
+                x.close();
+                return;
+            }
+            x.sendResponseHeaders(code, end-start);
+            OutputStream out = x.getResponseBody();
+            try {
+                if (cut>=0) {
+                    out.write(content, start, cut);
+                    out.flush();
+                    cut = -1;
+                } else {
+                    out.write(content, start, end-start);
+                }
+                out.close();
+            } catch (IOException cutoff) {
+                // the response was cut short on purpose
+            }
+            x.close();
+        }
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private File file(String name, byte[] content) throws IOException {
+        File f = new File(tmp.getRoot(), name);
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void testHasher() throws Exception {
+        byte[] content = random(1000003, 1);
+        File f = file("hashme", content);
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(content);
+        assertArrayEquals(expected, F.hash(f, "SHA-256"));
+
+        Hasher stream = new Hasher().threshold(0).chunk(65536).ahead(3);
+        Hasher.Result result = stream.hash(f, "SHA-256");
+        assertArrayEquals(expected, result.hash);
+        assertEquals(content.length, result.bytes);
+        assertEquals(Hasher.Mode.STREAM, result.mode);
+
+        Hasher tree = new Hasher().threshold(0).chunk(65536).mode(Hasher.Mode.TREE);
+        byte[] t1 = tree.hash(f, "MD5").hash;
+        byte[] t2 = tree.hash(f, "MD5").hash;
+        assertArrayEquals(t1, t2);
+        assertFalse(MessageDigest.isEqual(t1, F.md5(f)));
+
+        // mapping is opt-in and gives the same digests
+        assertArrayEquals(expected, new Hasher().threshold(0).chunk(65536).mapped(true).hash(f, "SHA-256").hash);
+        assertArrayEquals(t1, new Hasher().threshold(0).chunk(65536).mode(Hasher.Mode.TREE).mapped(true).hash(f, "MD5").hash);
+    }
+
+    @Test
+    public void testHashes() throws Exception {
+        byte[] content = random(200001, 2);
+        File f = file("multi", content);
+        Map<String,byte[]> hashes = F.hashes(f, "MD5", "SHA-1", "SHA-256");
+        assertEquals(3, hashes.size());
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(content), hashes.get("md5"));
+        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(content), hashes.get("SHA-1"));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), hashes.get("SHA-256"));
+        assertTrue(F.hashMatches(f, hashes, "SHA-1", MessageDigest.getInstance("SHA-1").digest(content)));
+        assertSame(hashes.get("MD5"), F.hashOrNull(f, hashes, "MD5"));
+
+        Map<String,byte[]> mapped = new Hasher().threshold(0).chunk(4096).mapped(true).hash(f, "MD5", "SHA-256").hashes;
+        assertArrayEquals(hashes.get("MD5"), mapped.get("MD5"));
+        assertArrayEquals(hashes.get("SHA-256"), mapped.get("SHA-256"));
+    }
+
+    @Test
+    public void testHashCache() throws Exception {
+        byte[] content = random(10000, 3);
+        File f = file("cached", content);
+        f.setLastModified(System.currentTimeMillis()-60000);
+        File index = new File(tmp.getRoot(), "index");
+        HashCache cache = new HashCache(10, index);
+        assertNull(cache.get(f, "MD5"));
+        byte[] md5 = cache.hash(f, "MD5");
+        assertArrayEquals(F.md5(f), md5);
+        assertArrayEquals(md5, cache.get(f, "md5"));
+
+        // a new cache replays the index
+        HashCache reloaded = new HashCache(10, index);
+        assertArrayEquals(md5, reloaded.get(f, "MD5"));
+
+        // any change to the size or mtime invalidates the entry
+        f.setLastModified(f.lastModified()-60000);
+        assertNull(reloaded.get(f, "MD5"));
+        assertEquals(0, reloaded.size());
+        reloaded.compact();
+        assertNull(new HashCache(10, index).get(f, "MD5"));
+
+        // re-hashing the same file keeps the journal bounded
+        java.nio.file.attribute.BasicFileAttributes attrs =
+            java.nio.file.Files.readAttributes(f.toPath(), java.nio.file.attribute.BasicFileAttributes.class);
+        for (int i=0; i<3000; i++) {
+            reloaded.put(f, attrs, "MD5", md5);
+        }
+        reloaded.close();
+        assertTrue(java.nio.file.Files.readAllLines(index.toPath()).size()<=HashCache.COMPACT_MIN);
+        assertArrayEquals(md5, new HashCache(10, index).get(f, "MD5"));
+    }
+
+    @Test
+    public void testUnique() throws Exception {
+        File src = file("src", random(5000, 4));
+        File dir = tmp.newFolder("unique");
+        File dst = new File(dir, "src");
+        assertFalse(F.copy(src, dir, F.ClobberMode.UNIQUE).matched);
+        assertTrue(F.copy(src, dir, F.ClobberMode.UNIQUE).matched);
+
+        // dst, dst[1] and dst[3] differ: the next copy lands in the gap at dst[2]
+        file("unique/src", random(5000, 5));
+        file("unique/src[1]", random(4000, 6));
+        file("unique/src[3]", random(5000, 7));
+        F.Clobbered result = F.copy(src, dst, F.ClobberMode.UNIQUE);
+        assertFalse(result.matched);
+        assertEquals("src[2]", result.file.getName());
+        assertArrayEquals(F.md5(src), F.md5(result.file));
+
+        // and is then matched there
+        result = F.copy(src, dst, F.ClobberMode.UNIQUE);
+        assertTrue(result.matched);
+        assertEquals("src[2]", result.file.getName());
+    }
+
+    @Test
+    public void testCopyHash() throws Exception {
+        byte[] content = random(3000000, 8);
+        File src = file("big", content);
+        File dir = tmp.newFolder("copyhash");
+        F.Clobbered result = F.copy(src, dir, F.ClobberMode.UNIQUE, "SHA-256");
+        assertFalse(result.matched);
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), result.hash);
+        assertArrayEquals(content, F.read(result.file));
+
+        result = F.copy(src, dir, F.ClobberMode.UNIQUE, "SHA-256");
+        assertTrue(result.matched);
+        assertEquals("big", result.file.getName());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), result.hash);
+    }
+
+    @Test
+    public void testCopierResume() throws Exception {
+        byte[] content = random(1000000, 9);
+        File src = file("resumable", content);
+        File dir = tmp.newFolder("resume");
+        File dst = new File(dir, "resumable");
+
+        // fail the copy part way through, after the first checkpoint
+        Copier failing = new Copier().chunk(100000).checkpoint(300000).progress(new Copier.Progress() {
+            public void progress(long copied, long total, long nanos) {
+                if (copied>=500000) throw new IllegalStateException("interrupted");
+            }
+        });
+        try {
+            F.copy(src, dst, F.ClobberMode.UNIQUE, failing);
+            fail("copy should have been interrupted");
+        } catch (IllegalStateException expected) {}
+        assertEquals(300000, Copier.resumable(src, dst));
+
+        final long[] last = new long[1];
+        Copier copier = new Copier().chunk(100000).progress(new Copier.Progress() {
+            public void progress(long copied, long total, long nanos) {
+                last[0] = copied;
+            }
+        });
+        F.Clobbered result = F.copy(src, dst, F.ClobberMode.UNIQUE, copier);
+        assertEquals(dst, result.file);
+        assertEquals(content.length, last[0]);
+        assertArrayEquals(content, F.read(dst));
+        assertFalse(Copier.checkpoint(dst).exists());
+    }
+
+    @Test
+    public void testResumableDownload() throws Exception {
+        byte[] content = random(500000, 10);
+        byte[] sha = MessageDigest.getInstance("SHA-256").digest(content);
+        Server server = new Server(content);
+        try {
+            File dir = tmp.newFolder("download");
+            Downloader downloader = new Downloader().resume(true).timeout(500);
+            server.cut = 200000;
+            try {
+                downloader.download(server.url("/files/payload"), dir, "SHA-256", sha, F.ClobberMode.UNIQUE);
+                fail("download should have been cut off");
+            } catch (IOException expected) {}
+            File part = Downloader.part(new File(dir, "payload"));
+            assertTrue(part.length()>0);
+            assertFalse(new File(dir, "payload").exists());
+
+            F.Clobbered result = downloader.download(server.url("/files/payload"), dir, "SHA-256", sha, F.ClobberMode.UNIQUE);
+            assertFalse(result.matched);
+            assertArrayEquals(sha, result.hash);
+            assertArrayEquals(content, F.read(result.file));
+            assertFalse(part.exists());
+            assertEquals("bytes="+200000+"-", server.range.get(1));
+
+            // a second download just matches
+            assertTrue(downloader.download(server.url("/files/payload"), dir, "SHA-256", sha, F.ClobberMode.UNIQUE).matched);
+
+            // a range starting elsewhere than requested restarts from scratch
+            result.file.delete();
+            server.cut = 200000;
+            try {
+                downloader.download(server.url("/files/payload"), dir, null, null, F.ClobberMode.UNIQUE);
+                fail("download should have been cut off");
+            } catch (IOException expected) {}
+            server.skew = 1000;
+            server.range.clear();
+            result = downloader.download(server.url("/files/payload"), dir, null, null, F.ClobberMode.UNIQUE);
+            assertArrayEquals(content, F.read(result.file));
+            assertEquals(Arrays.asList("bytes="+200000+"-", "null"), server.range);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSegmentedDownload() throws Exception {
+        byte[] content = random(1000000, 11);
+        byte[] md5 = MessageDigest.getInstance("MD5").digest(content);
+        Server server = new Server(content);
+        try {
+            File dir = tmp.newFolder("segmented");
+            Downloader downloader = new Downloader().segments(4);
+            F.Clobbered result = downloader.download(server.url("/payload"), dir, "MD5", md5, F.ClobberMode.NONE);
+            assertArrayEquals(md5, result.hash);
+            assertArrayEquals(content, F.read(result.file));
+            assertEquals(5, server.range.size()); // HEAD + 4 ranges
+            assertTrue(server.range.contains("bytes=750000-999999"));
+
+            // without range support the download falls back to a single stream
+            server.ranges = false;
+            server.range.clear();
+            result = downloader.download(server.url("/payload"), dir, "MD5", md5, F.ClobberMode.OVERWRITE);
+            assertTrue(result.matched);
+            new File(dir, "payload").delete();
+            result = downloader.download(server.url("/payload"), dir, "MD5", md5, F.ClobberMode.OVERWRITE);
+            assertFalse(result.matched);
+            assertArrayEquals(content, F.read(result.file));
+            assertEquals(Arrays.asList("null", "null", "null"), server.range);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDownloadCache() throws Exception {
+        byte[] content = random(100000, 12);
+        byte[] md5 = MessageDigest.getInstance("MD5").digest(content);
+        Server server = new Server(content);
+        try {
+            File dir = tmp.newFolder("cached");
+            DownloadCache cache = new DownloadCache(tmp.newFolder("cache")).maxBytes(1000000);
+            Downloader downloader = new Downloader().cache(cache);
+            F.Clobbered result = downloader.download(server.url("/payload"), dir, "MD5", null, F.ClobberMode.UNIQUE);
+            assertFalse(result.matched);
+            assertArrayEquals(md5, result.hash);
+            assertFalse(cache.get(server.url("/payload")).revalidated);
+
+            // revalidated with a 304, and matched by the cached content hash
+            result = downloader.download(server.url("/payload"), dir, "MD5", null, F.ClobberMode.UNIQUE);
+            assertTrue(result.matched);
+            assertEquals("payload", result.file.getName());
+
+            // a changed resource is downloaded again
+            server.etag = "\"v2\"";
+            server.content = random(100000, 13);
+            result = downloader.download(server.url("/payload"), dir, "MD5", null, F.ClobberMode.UNIQUE);
+            assertFalse(result.matched);
+            assertEquals("payload[1]", result.file.getName());
+            assertArrayEquals(server.content, F.read(result.file));
+
+            // a hash for another algorithm is computed once and kept in the meta
+            byte[] sha = MessageDigest.getInstance("SHA-256").digest(server.content);
+            DownloadCache.Entry e = cache.fetch(downloader, new java.net.URL(server.url("/payload")), "SHA-256");
+            assertTrue(e.revalidated);
+            assertArrayEquals(sha, e.hash);
+            assertArrayEquals(sha, cache.get(server.url("/payload")).hashes.get("sha-256"));
+            assertEquals("MD5", cache.get(server.url("/payload")).alg);
+
+            // eviction by size, after which a fetched entry can no longer be served
+            cache.maxBytes(50000).evict();
+            assertNull(cache.get(server.url("/payload")));
+            assertFalse(cache.serve(e, new File(dir, "evicted")));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDownloadBatch() throws Exception {
+        byte[] content = random(50000, 14);
+        Server server = new Server(content);
+        try {
+            File dir = tmp.newFolder("batch");
+            List<DownloadBatch.Job> jobs = new ArrayList<DownloadBatch.Job>();
+            for (int i=0; i<6; i++) {
+                jobs.add(new DownloadBatch.Job(server.url("/file"+i), dir, "MD5", null, F.ClobberMode.NONE));
+            }
+            jobs.add(new DownloadBatch.Job("bogus://nowhere/file", dir, "MD5", null, F.ClobberMode.NONE));
+            DownloadBatch.Report report = new DownloadBatch().concurrency(4).perHost(2).run(jobs);
+            assertEquals(6, report.succeeded);
+            assertEquals(1, report.failed);
+            assertFalse(report.outcomes.get(6).ok());
+            for (int i=0; i<6; i++) {
+                assertArrayEquals(content, F.read(report.outcomes.get(i).result.file));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDownloadBatchHosts() throws Exception {
+        // jobs queued for a busy host do not hold up another host
+        byte[] content = random(1000, 22);
+        Server busy  = new Server(content);
+        Server other = new Server(content);
+        try {
+            File dir = tmp.newFolder("hosts");
+            CountDownLatch latch = new CountDownLatch(1);
+            busy.gate   = latch;
+            other.opens = latch;
+            List<DownloadBatch.Job> jobs = new ArrayList<DownloadBatch.Job>();
+            for (int i=0; i<3; i++) {
+                jobs.add(new DownloadBatch.Job(busy.url("/busy"+i), dir, null, null, F.ClobberMode.NONE));
+            }
+            jobs.add(new DownloadBatch.Job(other.url("/other"), dir, null, null, F.ClobberMode.NONE));
+            DownloadBatch.Report report = new DownloadBatch().downloader(new Downloader().timeout(5000))
+                                                             .concurrency(2).perHost(1).run(jobs);
+            assertEquals(report.toString(), 4, report.succeeded);
+        } finally {
+            busy.stop();
+            other.stop();
+        }
+    }
+
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testStreamingDownload() throws Exception {
+        byte[] content = random(300000, 15);
+        Server server = new Server(content);
+        try {
+            Downloader.Body body = F.download(server.url("/small"), 1000000);
+            try {
+                assertNull(body.file());
+                assertEquals(content.length, body.length());
+                assertArrayEquals(content, drain(body));
+            } finally {
+                body.close();
+            }
+
+            body = F.download(server.url("/large"), 100000);
+            File spill = body.file();
+            try {
+                assertNotNull(spill);
+                assertEquals(content.length, body.length());
+                assertArrayEquals(content, drain(body));
+            } finally {
+                body.close();
+            }
+            assertFalse(spill.exists());
+
+            try {
+                F.download("bogus://nowhere", 1000);
+                fail("failures should be thrown");
+            } catch (IOException expected) {}
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBuffers() throws Exception {
+        byte[] content = random(300001, 16);
+        File f = file("mapped", content);
+        assertArrayEquals(content, F.read(f));
+        ByteBuffer buffer = F.buffer(f);
+        assertTrue(buffer.isReadOnly());
+        assertArrayEquals(content, drain(F.stream(buffer)));
+        assertEquals(0, buffer.position());
+
+        ByteBuffer[] buffers = F.buffers(f, 100000);
+        assertEquals(4, buffers.length);
+        assertEquals(1, buffers[3].remaining());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer b : buffers) {
+            out.write(drain(F.stream(b)));
+        }
+        assertArrayEquals(content, out.toByteArray());
+
+        File xml = file("doc.xml", "<Options><Host alias=\"x\"/></Options>".getBytes("UTF-8"));
+        assertEquals("Options", X.file2xml(xml).getDocumentElement().getNodeName());
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<20000; i++) {
+            sb.append("line ").append(i).append(" \u00e9\u20ac\ud83d\ude00\n");
+        }
+        String content = sb.toString();
+        File dir = tmp.newFolder("write");
+        File f = new File(dir, "config.txt");
+        assertEquals(f.getAbsoluteFile(), F.write(content, f, F.ClobberMode.NONE, StandardCharsets.UTF_8, true));
+        assertArrayEquals(content.getBytes(StandardCharsets.UTF_8), F.read(f));
+
+        // a Reader split across buffer boundaries (and surrogate pairs) encodes the same
+        File r = F.write(new StringReader(content), f, F.ClobberMode.UNIQUE, StandardCharsets.UTF_8, false);
+        assertEquals(new File(dir, "config.txt[1]").getAbsoluteFile(), r);
+        assertArrayEquals(content.getBytes(StandardCharsets.UTF_8), F.read(r));
+
+        F.write("replaced", f, F.ClobberMode.OVERWRITE);
+        assertEquals("replaced", new String(F.read(f)));
+        try {
+            F.write("again", f, F.ClobberMode.NONE);
+            fail("NONE should not overwrite");
+        } catch (IOException expected) {}
+        assertEquals("replaced", new String(F.read(f)));
+        assertEquals(2, dir.list().length); // no temporary files left behind
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        File src = tmp.newFolder("tree");
+        for (int d=0; d<5; d++) {
+            File dir = new File(src, "d"+d+"/sub");
+            dir.mkdirs();
+            for (int i=0; i<100; i++) {
+                F.write("file "+d+"/"+i, new File(dir, "f"+i), F.ClobberMode.NONE);
+            }
+        }
+        File dst = new File(tmp.getRoot(), "mirror");
+        Sync.Report report = F.sync(src, dst, F.ClobberMode.OVERWRITE);
+        assertEquals(report.toString(), 500, report.copied);
+        assertEquals(0, report.failed);
+        assertEquals(11, report.directories);
+        assertEquals("file 3/42", new String(F.read(new File(dst, "d3/sub/f42"))));
+
+        report = F.sync(src, dst, F.ClobberMode.OVERWRITE);
+        assertEquals(500, report.matched);
+        assertEquals(0, report.copied);
+
+        // same content with a new mtime matches by hash, new content is skipped or copied
+        File touched = new File(src, "d1/sub/f1");
+        touched.setLastModified(touched.lastModified()-60000);
+        F.write("changed", new File(src, "d2/sub/f2"), F.ClobberMode.OVERWRITE);
+        report = F.sync(src, dst, F.ClobberMode.NONE);
+        assertEquals(499, report.matched);
+        assertEquals(1, report.skipped);
+        assertEquals(touched.lastModified(), new File(dst, "d1/sub/f1").lastModified());
+        report = new Sync().mode(F.ClobberMode.UNIQUE).sync(src, dst);
+        assertEquals(1, report.copied);
+        assertEquals("changed", new String(F.read(new File(dst, "d2/sub/f2[1]"))));
+        assertEquals("file 2/2", new String(F.read(new File(dst, "d2/sub/f2"))));
+    }
+
+    @Test
+    public void testSyncUnreadable() throws Exception {
+        File src = tmp.newFolder("unreadable");
+        File dst = new File(tmp.getRoot(), "unreadable-mirror");
+        File f   = new File(src, "f");
+        F.write("content", f, F.ClobberMode.NONE);
+        assertEquals(1, F.sync(src, dst, F.ClobberMode.NONE).copied);
+
+        // under NONE a source that can not be read is a failure, not a skip
+        f.setLastModified(f.lastModified()-60000);
+        f.setReadable(false);
+        try {
+            org.junit.Assume.assumeFalse("file permissions are not enforced", f.canRead());
+            Sync.Report report = F.sync(src, dst, F.ClobberMode.NONE);
+            assertEquals(report.toString(), 1, report.failed);
+            assertEquals(0, report.skipped);
+            assertEquals(f, report.failures.get(0).src);
+
+            // but a different size is skipped without reading either file
+            FileOutputStream append = new FileOutputStream(f, true);
+            try {
+                append.write('!');
+            } finally {
+                append.close();
+            }
+            report = F.sync(src, dst, F.ClobberMode.NONE);
+            assertEquals(report.toString(), 0, report.failed);
+            assertEquals(1, report.skipped);
+        } finally {
+            f.setReadable(true);
+        }
+    }
+
+    @Test
+    public void testSyncCycle() throws Exception {
+        File src = tmp.newFolder("cyclic");
+        File dst = new File(tmp.getRoot(), "cyclic-mirror");
+        new File(src, "sub").mkdir();
+        F.write("content", new File(src, "sub/f"), F.ClobberMode.NONE);
+        try {
+            java.nio.file.Files.createSymbolicLink(new File(src, "sub/loop").toPath(), src.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            org.junit.Assume.assumeNoException(e);
+        }
+        Sync.Report report = F.sync(src, dst, F.ClobberMode.NONE);
+        assertEquals(report.toString(), 1, report.copied);
+        assertEquals(1, report.failed);
+        assertEquals(new File(src, "sub/loop"), report.failures.get(0).src);
+    }
+
+    @Test
+    public void testStore() throws Exception {
+        Store store = new Store(tmp.newFolder("store")).links(true);
+        File archive = tmp.newFolder("archive");
+        byte[] payload = random(100000, 17);
+        File src = file("payload", payload);
+
+        Store.Stored first = store.put(src, new File(archive, "a"), F.ClobberMode.NONE);
+        assertTrue(first.stored);
+        Store.Stored second = store.put(new java.io.ByteArrayInputStream(payload), new File(archive, "b"), F.ClobberMode.NONE);
+        assertFalse(second.stored);
+        assertEquals(first.blob, second.blob);
+        assertTrue(store.put(src, new File(archive, "a"), F.ClobberMode.NONE).matched);
+        assertArrayEquals(payload, F.read(new File(archive, "b")));
+
+        Store.Stored ref = new Store(new File(tmp.getRoot(), "store"))
+                                .put(src, new File(archive, "c"), F.ClobberMode.NONE);
+        assertFalse(ref.linked);
+        assertEquals(first.blob, store.open(new File(archive, "c")));
+        assertTrue(store.put(src, new File(archive, "c"), F.ClobberMode.NONE).matched);
+
+        int refs = store.refs(first.hash);
+        if (refs<0) return; // no link counts on this platform
+        assertEquals(3, refs);
+        assertTrue(first.linked);
+        assertEquals(0, store.gc().removed);
+        store.release(new File(archive, "a"));
+        store.release(new File(archive, "b"));
+        assertEquals(1, store.refs(first.hash));
+        assertEquals(0, store.gc().removed);
+        store.release(new File(archive, "c"));
+        Store.Collected gc = store.gc();
+        assertEquals(1, gc.removed);
+        assertEquals(payload.length, gc.bytes);
+        assertFalse(first.blob.exists());
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        byte[] old = random(1000000, 18);
+        File dst = file("delta", old);
+        File cache = new File(tmp.getRoot(), "signatures");
+
+        // a change in place rewrites only the blocks it touches
+        byte[] changed = old.clone();
+        System.arraycopy(random(100, 19), 0, changed, 500000, 100);
+        File src = file("changed", changed);
+        Delta.Result result = new Delta().block(4096).cache(cache).copy(src, dst);
+        assertTrue(result.toString(), result.inPlace);
+        assertFalse(result.cached);
+        assertTrue(result.literal <= 2*4096+1000000%4096);
+        assertArrayEquals(changed, F.read(dst));
+
+        // an insertion shifts the rest of the content, which is still reused
+        byte[] inserted = new byte[changed.length+10];
+        System.arraycopy(changed, 0, inserted, 0, 300000);
+        System.arraycopy(random(10, 20), 0, inserted, 300000, 10);
+        System.arraycopy(changed, 300000, inserted, 300010, changed.length-300000);
+        src = file("inserted", inserted);
+        result = new Delta().block(4096).cache(cache).copy(src, dst);
+        assertTrue(result.toString(), result.cached);
+        assertFalse(result.inPlace);
+        assertTrue(result.reused >= inserted.length-3*4096);
+        assertArrayEquals(inserted, F.read(dst));
+
+        // a new file is simply copied
+        File fresh = new File(tmp.getRoot(), "fresh");
+        assertEquals(inserted.length, F.delta(src, fresh).literal);
+        assertArrayEquals(inserted, F.read(fresh));
+
+        // and with a cache, the copy is signed for the next delta
+        File copied = new File(tmp.getRoot(), "copied");
+        assertFalse(new Delta().block(4096).cache(cache).copy(src, copied).cached);
+        result = new Delta().block(4096).cache(cache).copy(src, copied);
+        assertTrue(result.toString(), result.cached);
+        assertTrue(result.literal < 4096); // only the partial last block
+        assertArrayEquals(inserted, F.read(copied));
+
+        // a same-size change with a preserved mtime is caught by the whole-file check
+        byte[] tampered = inserted.clone();
+        System.arraycopy(random(100, 21), 0, tampered, 4096*10, 100);
+        long mtime = copied.lastModified();
+        File other = file("tampered", tampered);
+        java.nio.file.Files.copy(other.toPath(), copied.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        copied.setLastModified(mtime);
+        result = new Delta().block(4096).cache(cache).copy(src, copied);
+        assertTrue(result.toString(), result.cached);
+        assertEquals(inserted.length, result.literal);
+        assertArrayEquals(inserted, F.read(copied));
+        assertTrue(new Delta().block(4096).cache(cache).copy(src, copied).cached);
+    }
+
+    private static Manifest.Diff await(Manifest manifest, Map<String,Manifest.Entry> before, int changes) throws Exception {
+        Manifest.Diff diff = manifest.since(before);
+        for (int i=0; i<200 && diff.added.size()+diff.removed.size()+diff.changed.size()<changes; i++) {
+            Thread.sleep(50);
+            diff = manifest.since(before);
+        }
+        return diff;
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        File root = tmp.newFolder("watched");
+        new File(root, "sub").mkdir();
+        F.write("one", new File(root, "one"), F.ClobberMode.NONE);
+        F.write("two", new File(root, "sub/two"), F.ClobberMode.NONE);
+        Manifest manifest = new Manifest(root).debounce(100).start();
+        try {
+            Map<String,Manifest.Entry> before = manifest.snapshot();
+            assertEquals(2, before.size());
+            assertArrayEquals(F.md5(new File(root, "sub/two")), before.get("sub/two").hash);
+
+            F.write("three", new File(root, "sub/three"), F.ClobberMode.NONE);
+            F.write("changed", new File(root, "one"), F.ClobberMode.OVERWRITE);
+            new File(root, "sub/two").delete();
+            Manifest.Diff diff = await(manifest, before, 3);
+            assertEquals(diff.toString(), 1, diff.added.size());
+            assertEquals("sub/three", diff.added.get(0).path);
+            assertEquals(1, diff.changed.size());
+            assertEquals(1, diff.removed.size());
+
+            // a new directory is watched too
+            before = manifest.snapshot();
+            File deep = new File(root, "new/deeper");
+            deep.mkdirs();
+            F.write("deep", new File(deep, "file"), F.ClobberMode.NONE);
+            diff = await(manifest, before, 1);
+            assertEquals(diff.toString(), "new/deeper/file", diff.added.get(0).path);
+
+            // a racy entry is re-hashed even though its size and mtime are unchanged
+            File racy = new File(root, "one");
+            assertTrue(manifest.get("one").racy());
+            long mtime = racy.lastModified();
+            before = manifest.snapshot();
+            F.write("CHANGED", racy, F.ClobberMode.OVERWRITE);
+            racy.setLastModified(mtime);
+            diff = await(manifest, before, 1);
+            assertEquals(diff.toString(), 1, diff.changed.size());
+            assertArrayEquals(F.md5(racy), manifest.get("one").hash);
+        } finally {
+            manifest.close();
+        }
+    }
+
+    @Test
+    public void testCopyBatch() throws Exception {
+        File in  = tmp.newFolder("batch-in");
+        File out = tmp.newFolder("batch-out");
+        List<CopyBatch.Job> jobs = new ArrayList<CopyBatch.Job>();
+        for (int i=0; i<200; i++) {
+            File src = new File(in, "edi"+i);
+            F.write("ISA*"+i+"~", src, F.ClobberMode.NONE);
+            jobs.add(new CopyBatch.Job(src, out, F.ClobberMode.UNIQUE));
+        }
+        File big = file("batch-big", random(100000, 21));
+        jobs.add(new CopyBatch.Job(big, out, F.ClobberMode.UNIQUE));
+        CopyBatch batch = new CopyBatch().concurrency(4).buffer(65536);
+        CopyBatch.Report report = batch.run(jobs);
+        assertEquals(report.toString(), 201, report.copied);
+        assertEquals("ISA*7~", new String(F.read(new File(out, "edi7"))));
+        assertArrayEquals(F.read(big), F.read(new File(out, "batch-big")));
+
+        // a second run matches everything, a changed source gets a unique variant
+        F.write("ISA*changed~", new File(in, "edi3"), F.ClobberMode.OVERWRITE);
+        report = batch.run(jobs);
+        assertEquals(report.toString(), 200, report.matched);
+        assertEquals(1, report.copied);
+        assertEquals("ISA*changed~", new String(F.read(new File(out, "edi3[1]"))));
+        assertArrayEquals(F.md5(new File(out, "edi3[1]")), report.outcomes.get(3).result.hash);
+
+        jobs.get(0).src = new File(in, "missing");
+        report = batch.run(jobs);
+        assertEquals(1, report.failed);
+        assertFalse(report.outcomes.get(0).ok());
+    }
+
+    @Test
+    public void testSparseCopy() throws Exception {
+        File src = new File(tmp.getRoot(), "sparse");
+        byte[] data = random(10000, 22);
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(src, "rw");
+        try {
+            raf.setLength(8*1024*1024);
+            raf.write(data);
+            raf.seek(5*1024*1024+100);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+        File dst = new File(tmp.getRoot(), "sparse.copy");
+        Copier.Result result = new Copier().sparse(true).chunk(3*1024*1024).copy(src, dst);
+        assertEquals(8*1024*1024, dst.length());
+        assertTrue(result.toString(), result.holes >= 8*1024*1024-4*4096-2*data.length);
+        assertArrayEquals(F.md5(src), F.md5(dst));
+
+        File pre = new File(tmp.getRoot(), "preallocated");
+        F.write("stale content longer than nothing", pre, F.ClobberMode.NONE);
+        result = new Copier().preallocate(true).copy(src, pre);
+        assertEquals(0, result.holes);
+        assertArrayEquals(F.md5(src), F.md5(pre));
+    }
+}
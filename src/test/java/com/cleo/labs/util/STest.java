@@ -0,0 +1,225 @@
+package com.cleo.labs.util;
+
+import static org.junit.Assert.*;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingFormatArgumentException;
+
+import org.junit.Test;
+
+public class STest {
+    @Test
+    public void testTemplate() {
+        String[] formats = {"%s=?", "%s%s", "[%2$s:%1$s]", "%s %% %s%n", "plain", "%s-%1$s-%s"};
+        for (String format : formats) {
+            S.Template t = new S.Template(format);
+            assertEquals(format, String.format(format, "a", "b"), t.format("a", "b"));
+            assertEquals(format, String.format(format, "a", null), t.render(new StringBuilder(), "a", null).toString());
+            assertEquals(format, t.format("x", "y"), t.render(new StringBuilder(), new Object[]{"x", "y"}).toString());
+        }
+        assertEquals(1, new S.Template("%s=?").arity());
+        assertEquals(2, new S.Template("%2$s").arity());
+        assertEquals("a=?", new S.Template("%s=?").render(new StringBuilder(), "a").toString());
+        try {
+            new S.Template("%s=%s").render(new StringBuilder(), "a");
+            fail("expected MissingFormatArgumentException");
+        } catch (MissingFormatArgumentException expected) {}
+        for (String unsupported : new String[] {"%d", "%-5s", "%", "%1s", "%.2f"}) {
+            try {
+                new S.Template(unsupported);
+                fail(unsupported+" should not compile");
+            } catch (IllegalArgumentException expected) {}
+            assertNull(S.Template.compiled(unsupported));
+        }
+    }
+
+    @Test
+    public void testLam() {
+        String[] a = {"a", "b", "c"};
+        String[] b = {"1", "2"};
+        assertArrayEquals(new String[] {"a=1", "b=2", "c="}, S.lam(a, b, "%s=%s"));
+        assertArrayEquals(new String[] {"a=1", "b=2", "c="}, S.lam(a, b, new S.Template("%s=%s")));
+        assertArrayEquals(new String[] {"a1", "b2", "c"}, S.lam(a, b));
+        assertArrayEquals(new String[] {"1a", "2b", "c"}, S.lam(b, a));
+        assertArrayEquals(new String[] {"a=?", "b=?", "c=?"}, S.lam(a, "%s=?"));
+        assertArrayEquals(new String[] {"  a", "  b", "  c"}, S.lam(a, "%3s")); // String.format fallback
+        assertEquals("a=? and b=? and c=?", S.join(" and ", a, new S.Template("%s=?")));
+        assertEquals("", S.join(",", (List<String>)null, new S.Template("%s")));
+
+        Map<String,String> map = new LinkedHashMap<String,String>();
+        map.put("x", "1");
+        map.put("y", "2");
+        assertEquals("x=1&y=2", S.join("&", map, "%s=%s"));
+        assertEquals("1:x&2:y", S.join("&", map, "%2$s:%1$s"));
+        assertEquals("x=   1&y=   2", S.join("&", map, "%s=%4s"));
+        assertEquals("x=1&y=2", S.join("&", map, new S.Sprintf("%s=%s")));
+    }
+
+    @Test
+    public void testGlob() {
+        String[] globs   = {"", "*", "**", "abc", "a?c", "ab*", "*bc", "a*c", "*b*", "a*b*c", "?*?", "a**c", "*a*a*", "x.y*", "A(1)*"};
+        String[] strings = {"", "a", "abc", "ABC", "aXc", "abbc", "abcabc", "ac", "bc", "aac", "aaa", "x.y", "xzy", "a(1)", "b"};
+        for (String glob : globs) {
+            java.util.regex.Pattern re = java.util.regex.Pattern.compile(S.glob2re(glob));
+            S.Glob compiled = S.glob(glob);
+            assertSame(compiled, S.glob(glob));
+            for (String string : strings) {
+                assertEquals(glob+" ~ "+string, re.matcher(string).matches(), compiled.matches(string));
+            }
+        }
+        Map<String,Object> map = new LinkedHashMap<String,Object>();
+        map.put("Host", "h");
+        map.put("HostName", "n");
+        map.put("Port", "p");
+        assertArrayEquals(S.a("Host", "HostName"), S.a(S.filter(map, new S.GlobFilter<String>("host*")).keySet()));
+
+        // GlobFilter keeps the glob2re semantics, and its type
+        S.RegexFilter<String> filter = new S.GlobFilter<String>("a+*");
+        assertTrue(filter.accept("aaab"));
+        assertFalse(S.glob("a+*").matches("aaab"));
+        assertTrue(S.glob("a+*").matches("a+b"));
+        assertFalse(new S.GlobFilter<String>("a*").accept("a\nb"));
+        assertTrue(S.glob("a*").matches("a\nb"));
+        assertTrue(new S.GlobFilter<String>("A?C").accept("abc"));
+    }
+
+    @Test
+    public void testFilterSet() {
+        String[] globs   = {"host", "host*", "*name", "*st*", "h?st*", "*", "?", "a*b*c", "*port?", "?*?", "", "HOSTNAME"};
+        String[] regexes = {"p.*t", "[0-9]+"};
+        S.FilterSet set = new S.FilterSet().glob(globs).regex(regexes);
+        assertEquals(globs.length+regexes.length, set.size());
+        Map<String,Object> map = new LinkedHashMap<String,Object>();
+        for (String key : S.a("Host", "HostName", "port", "Ports", "xPORT1", "abc", "aXbYc", "h", "", "123", "lost")) {
+            map.put(key, key.length());
+        }
+        List<Map<String,Object>> hits = set.classify(map);
+        for (int i=0; i<set.size(); i++) {
+            S.Filter<String> filter = i<globs.length ? new S.GlobFilter<String>(globs[i])
+                                                     : new S.RegexFilter<String>(regexes[i-globs.length]);
+            Map<String,Object> expected = S.filter(map, filter);
+            assertEquals(i<globs.length ? globs[i] : regexes[i-globs.length], expected, hits.get(i));
+        }
+        S.FilterSet some = new S.FilterSet().glob("*name", "port");
+        assertArrayEquals(S.a("HostName", "port"), S.a(S.filter(map, some).keySet()));
+        assertTrue(some.accept("PORT"));
+        assertFalse(some.accept("ports"));
+    }
+
+    @Test
+    public void testMegascan() {
+        S.GroupInspector<String> scanner = new S.GroupInspector<String>() {
+            public String inspect(CharSequence input, java.util.regex.MatchResult group) {
+                if (group.end(1)-group.start(1)==3 && input.charAt(group.start(1))=='b') {
+                    throw new IllegalArgumentException("bad key");
+                }
+                return group.group(1)+"="+group.group(2);
+            }
+        };
+        S.Inspector<String> splitter = new S.Inspector<String>() {
+            public String inspect(String[] group) {
+                if (group[1].equals("bad")) throw new IllegalArgumentException("bad key");
+                return group[1]+"="+group[2];
+            }
+        };
+        StringBuilder big = new StringBuilder();
+        for (int i=0; i<5000; i++) {
+            big.append("key").append(i).append("=value ").append(i).append(", ");
+        }
+        for (String input : S.a("a=1, b=2,c=", "", " , a=1", "a=1, !x=2", "a=1, bad=2, c=3", big.toString(), big+"!")) {
+            List<String> expected = null;
+            String error = null;
+            try {
+                expected = S.megasplit(S.COMMA_EQUALS, input, splitter);
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
+            }
+            for (int pass=0; pass<2; pass++) {
+                java.util.Iterator<String> i = pass==0 ? S.megascan(S.COMMA_EQUALS, input, scanner)
+                                                       : S.megascan(S.COMMA_EQUALS, new java.io.StringReader(input), scanner);
+                List<String> actual = new java.util.ArrayList<String>();
+                try {
+                    while (i.hasNext()) actual.add(i.next());
+                    assertNull(error);
+                    assertEquals(expected, actual);
+                } catch (IllegalArgumentException e) {
+                    assertNotNull(e.getMessage(), error);
+                    if (pass==0) {
+                        assertEquals(error, e.getMessage());
+                    } else if (input.length()<8192) {
+                        // the same context, with the offset, and ... if the reader was not drained
+                        assertEquals(error, e.getMessage().replaceFirst(" at offset \\d+: ", ": ")
+                                                          .replaceFirst("\\.\\.\\.$", ""));
+                    } else {
+                        assertTrue(e.getMessage(), e.getMessage().startsWith("parsing error at offset "+(input.length()-1)+": ..."));
+                        assertTrue(e.getMessage(), e.getMessage().matches("(?s).*-->!(\\.\\.\\.)?"));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMegascanEndless() {
+        // an error is reported without draining the reader
+        java.io.Reader endless = new java.io.Reader() {
+            private int n = 0;
+            public int read(char[] cbuf, int off, int len) {
+                for (int i=0; i<len; i++, n++) {
+                    cbuf[off+i] = n<6 ? "a=1, !".charAt(n) : 'x';
+                }
+                return len;
+            }
+            public void close() {}
+        };
+        S.GroupInspector<String> scanner = new S.GroupInspector<String>() {
+            public String inspect(CharSequence input, java.util.regex.MatchResult group) {
+                return group.group(1);
+            }
+        };
+        java.util.Iterator<String> i = S.megascan(S.COMMA_EQUALS, endless, scanner);
+        assertEquals("a", i.next());
+        try {
+            i.hasNext();
+            fail("expected a parsing error");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("parsing error at offset 5: a=1, -->!x"));
+            assertTrue(e.getMessage().endsWith("..."));
+        }
+    }
+
+    @Test
+    public void testSplitCommaEquals() {
+        java.util.regex.Pattern regex = java.util.regex.Pattern.compile(S.COMMA_EQUALS.pattern()); // not ==, so megasplit
+        java.util.Random random = new java.util.Random(42);
+        String alphabet = "ab_1=, \t\n!";
+        for (int t=0; t<5000; t++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i=random.nextInt(12); i>0; i--) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String input = t==0 ? null : sb.toString();
+            Map<String,String> expected = null;
+            String error = null;
+            try {
+                expected = S.split(input, regex);
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
+            }
+            try {
+                assertEquals(input, expected, S.split(input, S.COMMA_EQUALS));
+                assertNull(input, error);
+            } catch (IllegalArgumentException e) {
+                assertEquals(input, error, e.getMessage());
+            }
+        }
+        Map<String,String> into = new java.util.TreeMap<String,String>();
+        into.put("z", "0");
+        assertSame(into, S.split(new StringBuilder("b=2, a=1 ,a=x=y"), into, true));
+        assertEquals("{a=x=y, b=2, z=0}", into.toString());
+        String key = into.keySet().iterator().next();
+        assertSame("a", key);
+    }
+}
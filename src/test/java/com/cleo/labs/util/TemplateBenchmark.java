@@ -0,0 +1,49 @@
+package com.cleo.labs.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares {@link S#join(String, java.util.Collection, S.Template)} with a {@link S.Template}
+ * against formatting each element with {@link String#format}.  This is not a unit
+ * test (the functional template tests are in {@link STest}), so it is run by hand:
+ * <pre>
+ * java -cp target/classes:target/test-classes com.cleo.labs.util.TemplateBenchmark [joins]
+ * </pre>
+ */
+public class TemplateBenchmark {
+    public static void main(String[] args) {
+        List<String> columns = Arrays.asList(S.w("id name description created modified owner status"));
+        S.Template t = new S.Template("%s=?");
+        int n = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+        String expected = null;
+        for (int pass=0; pass<2; pass++) { // the first pass warms up
+            long start = System.nanoTime();
+            for (int i=0; i<n; i++) {
+                expected = S.join(",", formatEach(columns));
+            }
+            long formatted = System.nanoTime()-start;
+            start = System.nanoTime();
+            String actual = null;
+            for (int i=0; i<n; i++) {
+                actual = S.join(",", columns, t);
+            }
+            long templated = System.nanoTime()-start;
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException("Template produced \""+actual+"\", expected \""+expected+"\"");
+            }
+            if (pass>0) {
+                System.out.println(String.format("String.format: %.1f ms, Template: %.1f ms (%d joins of %d columns)",
+                                                 formatted/1e6, templated/1e6, n, columns.size()));
+            }
+        }
+    }
+
+    private static String[] formatEach(List<String> columns) {
+        String[] result = new String[columns.size()];
+        for (int i=0; i<result.length; i++) {
+            result[i] = String.format("%s=?", columns.get(i));
+        }
+        return result;
+    }
+}
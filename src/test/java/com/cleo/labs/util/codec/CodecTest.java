@@ -0,0 +1,130 @@
+package com.cleo.labs.util.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.cleo.labs.util.F;
+import com.cleo.labs.util.SSHA;
+
+public class CodecTest {
+
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testHex() throws Exception {
+        assertEquals("00017f80ff", Hex.encode(new byte[] {0, 1, 127, -128, -1}));
+        assertArrayEquals(new byte[] {0, 1, 127, -128, -1}, Hex.decode("00017F80fF"));
+        assertFalse(Hex.valid("0g"));
+        assertFalse(Hex.valid("012"));
+        assertFalse(Hex.valid("0\u0660")); // a non-ASCII digit
+        assertNull(F.hex("zz"));
+        assertNull(F.hex("abc"));
+        assertEquals("cafe", F.hex(F.hex("CAFE")));
+
+        byte[] bytes = new byte[10000];
+        new Random(1).nextBytes(bytes);
+        char[] chars = new char[Hex.encoded(bytes.length)+2];
+        assertEquals(20000, Hex.encode(bytes, 0, bytes.length, chars, 2));
+        byte[] back = new byte[bytes.length];
+        Hex.decode(java.nio.CharBuffer.wrap(chars), 2, 20000, back, 0);
+        assertArrayEquals(bytes, back);
+
+        ByteBuffer ascii = ByteBuffer.allocateDirect(20000);
+        Hex.encode(ByteBuffer.wrap(bytes), ascii);
+        ascii.flip();
+        ByteBuffer decoded = ByteBuffer.allocate(10000);
+        Hex.decode(ascii, decoded);
+        assertArrayEquals(bytes, decoded.array());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encoder = Hex.encoder(out);
+        encoder.write(bytes, 0, 3);
+        encoder.write(bytes[3]);
+        encoder.write(bytes, 4, bytes.length-4);
+        encoder.close();
+        assertEquals(Hex.encode(bytes), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+        assertArrayEquals(bytes, drain(Hex.decoder(new ByteArrayInputStream(out.toByteArray()))));
+        try {
+            drain(Hex.decoder(new ByteArrayInputStream("abc".getBytes())));
+            fail("truncated hex should fail");
+        } catch (IOException expected) {}
+    }
+
+    @Test
+    public void testB64() throws Exception {
+        ByteBuffer text = ByteBuffer.wrap("xxQUJDRA==".getBytes("US-ASCII"));
+        text.position(2);
+        CharSequence view = B64.ascii(text);
+        assertEquals("QUJDRA==", view.toString());
+        assertEquals("JDR", view.subSequence(2, 5).toString());
+        assertEquals("D", view.subSequence(2, 5).subSequence(1, 2).toString());
+        assertEquals("ABCD", new String(B64.decode(view)));
+        assertTrue(java.util.regex.Pattern.matches("[A-Z]+==", view));
+
+        Random random = new Random(2);
+        for (int len=0; len<50; len++) {
+            byte[] bytes = new byte[len];
+            random.nextBytes(bytes);
+            String expected = Base64.getEncoder().encodeToString(bytes);
+            assertEquals(expected, B64.encode(bytes));
+            assertArrayEquals(bytes, B64.decode(expected));
+            ByteBuffer ascii = ByteBuffer.allocate(B64.encoded(len));
+            B64.encode(ByteBuffer.wrap(bytes), ascii);
+            assertEquals(expected, new String(ascii.array(), StandardCharsets.US_ASCII));
+            ascii.flip();
+            ByteBuffer direct = ByteBuffer.allocateDirect(len);
+            B64.decode(ascii, direct);
+            direct.flip();
+            byte[] back = new byte[len];
+            direct.get(back);
+            assertArrayEquals(bytes, back);
+        }
+        assertFalse(B64.valid("QQ"));       // unpadded
+        assertFalse(B64.valid("QR=="));     // non-zero trailing bits
+        assertFalse(B64.valid("QQ==QQ==")); // padding before the end
+        assertFalse(B64.valid("QQ\n=="));   // line break
+        assertTrue(B64.valid("QQ=="));
+
+        byte[] bytes = new byte[100000];
+        random.nextBytes(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encoder = B64.encoder(out);
+        for (int off=0; off<bytes.length; off+=7) {
+            encoder.write(bytes, off, Math.min(7, bytes.length-off));
+        }
+        encoder.close();
+        assertEquals(Base64.getEncoder().encodeToString(bytes), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+        assertArrayEquals(bytes, drain(B64.decoder(new ByteArrayInputStream(out.toByteArray()))));
+        try {
+            drain(B64.decoder(new ByteArrayInputStream("QQ==QQ==".getBytes())));
+            fail("data after padding should fail");
+        } catch (IOException expected) {}
+    }
+
+    @Test
+    public void testSSHA() {
+        String hash = SSHA.hash("cleo");
+        assertTrue(hash, hash.startsWith(SSHA.TAG) && B64.valid(hash.substring(SSHA.TAG.length())));
+        assertTrue(SSHA.verify("cleo", hash));
+        assertFalse(SSHA.verify("cl\u0435o", hash));
+    }
+}